@@ -4,6 +4,7 @@ import android.Manifest;
 import android.app.AlertDialog;
 import android.app.Dialog;
 import android.app.assist.AssistContent;
+import android.arch.lifecycle.ViewModelProviders;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -17,6 +18,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.RemoteException;
 import android.provider.Settings;
+import android.support.annotation.NonNull;
 import android.support.design.widget.NavigationView;
 import android.support.design.widget.TextInputEditText;
 import android.support.design.widget.TextInputLayout;
@@ -36,9 +38,11 @@ import android.view.View;
 import android.view.WindowManager;
 import android.view.inputmethod.EditorInfo;
 import android.widget.CompoundButton;
+import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
+import android.widget.Toast;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
@@ -53,13 +57,13 @@ import com.microsoft.bot.builder.solutions.virtualassistant.activities.main.acti
 import com.microsoft.bot.builder.solutions.virtualassistant.activities.main.actionslist.ActionsViewholder;
 import com.microsoft.bot.builder.solutions.virtualassistant.activities.main.chatlist.Action;
 import com.microsoft.bot.builder.solutions.virtualassistant.activities.main.chatlist.ChatAdapter;
+import com.microsoft.bot.builder.solutions.virtualassistant.activities.main.chatlist.ChatModel;
+import com.microsoft.bot.builder.solutions.virtualassistant.activities.main.chatlist.ChatViewModel;
 import com.microsoft.bot.builder.solutions.virtualassistant.activities.main.chatlist.ItemOffsetDecoration;
 import com.microsoft.bot.builder.solutions.virtualassistant.activities.settings.SettingsActivity;
+import com.microsoft.bot.builder.solutions.virtualassistant.transcript.SearchIndex;
 import com.microsoft.bot.builder.solutions.virtualassistant.utils.AppConfiguration;
 
-import org.greenrobot.eventbus.EventBus;
-import org.greenrobot.eventbus.Subscribe;
-import org.greenrobot.eventbus.ThreadMode;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -78,8 +82,10 @@ import events.ActivityReceived;
 import events.BotListening;
 import events.Connected;
 import events.Disconnected;
+import events.EventDispatcher;
 import events.Recognized;
 import events.RecognizedIntermediateResult;
+import events.Reconnecting;
 import events.RequestTimeout;
 import io.adaptivecards.objectmodel.ActionType;
 import io.adaptivecards.objectmodel.BaseActionElement;
@@ -113,6 +119,7 @@ public class MainActivity extends BaseActivity
     private static final int REQUEST_CODE_OVERLAY_PERMISSION = 255;
     private static final String PARAMS_USER_ID = "userId";
     private static final String PARAMS_SIGN_IN_STATUS = "signInStatus";
+    private static final int MAX_SEARCH_RESULTS = 50;
 
     // STATE
     private ChatAdapter chatAdapter;
@@ -126,6 +133,7 @@ public class MainActivity extends BaseActivity
     private boolean bargeInSupported;
     private boolean isExpandedTextInput;
     private boolean isCreated;// used to identify when onCreate() is complete, used with SwitchCompat
+    private long scrollToChatItemId = -1; // search result to scroll to once the chat list shows it
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -186,11 +194,19 @@ public class MainActivity extends BaseActivity
         isCreated = true;//keep this as last line in onCreate()
     }
 
-    // Register for EventBus messages and SpeechService
+    // Register for events and SpeechService
     @Override
     public void onStart() {
         super.onStart();
-        EventBus.getDefault().register(this);
+        EventDispatcher dispatcher = EventDispatcher.getDefault();
+        dispatcher.register(this, Disconnected.class, EventDispatcher.ThreadMode.MAIN, this::onEventDisconnected);
+        dispatcher.register(this, Reconnecting.class, EventDispatcher.ThreadMode.MAIN, this::onEventReconnecting);
+        dispatcher.register(this, Connected.class, EventDispatcher.ThreadMode.MAIN, this::onEventConnected);
+        dispatcher.register(this, BotListening.class, EventDispatcher.ThreadMode.MAIN, this::onEventBotListening);
+        dispatcher.register(this, RecognizedIntermediateResult.class, EventDispatcher.ThreadMode.MAIN, this::onEventRecognizedIntermediateResult);
+        dispatcher.register(this, Recognized.class, EventDispatcher.ThreadMode.MAIN, this::onEventRecognized);
+        dispatcher.register(this, ActivityReceived.class, EventDispatcher.ThreadMode.MAIN, this::onEventActivityReceived);
+        dispatcher.register(this, RequestTimeout.class, EventDispatcher.ThreadMode.MAIN, this::onEventRequestTimeout);
         if (speechServiceBinder == null) {
             doBindService();
         }
@@ -222,11 +238,11 @@ public class MainActivity extends BaseActivity
         getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON); // to disable keeping screen on
     }
 
-    // Unregister EventBus messages and SpeechService
+    // Unregister events and SpeechService
     @Override
     public void onStop() {
         super.onStop();
-        EventBus.getDefault().unregister(this);
+        EventDispatcher.getDefault().unregister(this);
         if (myConnection != null) {
             unbindService(myConnection);
             speechServiceBinder = null;
@@ -235,6 +251,7 @@ public class MainActivity extends BaseActivity
 
     private void setupChatRecyclerView() {
         chatAdapter = new ChatAdapter(this);
+        chatRecyclerView.setRecycledViewPool(chatAdapter.getRecycledViewPool());
         chatRecyclerView.setAdapter(chatAdapter);
 
         LinearLayoutManager layoutManager = new LinearLayoutManager(this);
@@ -243,6 +260,32 @@ public class MainActivity extends BaseActivity
 
         final int spacing = getResources().getDimensionPixelOffset(R.dimen.list_item_spacing_small);
         chatRecyclerView.addItemDecoration(new ItemOffsetDecoration(spacing));
+
+        // make the chat list scroll automatically to new messages, they are inserted once the list diff is done
+        chatAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                if (scrollToChatItemId >= 0) {
+                    // after the whole update is dispatched
+                    final long id = scrollToChatItemId;
+                    scrollToChatItemId = -1;
+                    chatRecyclerView.post(() -> scrollToChatItem(id));
+                } else if (positionStart + itemCount == chatAdapter.getItemCount()) {
+                    // not for older messages inserted at the top
+                    chatRecyclerView.scrollToPosition(chatAdapter.getItemCount() - 1);
+                }
+            }
+        });
+
+        // load older messages when the user drags down at the top of the list
+        chatRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(@NonNull RecyclerView recyclerView, int newState) {
+                if (newState == RecyclerView.SCROLL_STATE_DRAGGING && !recyclerView.canScrollVertically(-1)) {
+                    chatAdapter.loadOlder();
+                }
+            }
+        });
     }
 
     private void setupSuggestedActionsRecyclerView() {
@@ -308,6 +351,8 @@ public class MainActivity extends BaseActivity
 
         try {
             speechServiceBinder.startLocationUpdates();
+            // pre-warm the connection so that the first turn doesn't wait for it
+            speechServiceBinder.connectAsync();
         } catch (RemoteException e) {
             e.printStackTrace();
         }
@@ -329,6 +374,9 @@ public class MainActivity extends BaseActivity
                     speechServiceBinder.clearSuggestedActions();
                     resetSpeechService();
                     break;
+                case R.id.nav_menu_search_conversation:
+                    showSearchDialog();
+                    break;
                 case R.id.nav_menu_sign_in:
                     startActivity(LinkedAccountActivity.getNewIntent(this));
             }
@@ -410,6 +458,57 @@ public class MainActivity extends BaseActivity
         }
     }
 
+    private void showSearchDialog() {
+        final EditText queryInput = new EditText(this);
+        queryInput.setSingleLine();
+        queryInput.setHint(R.string.search_hint);
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.nav_menu_search_conversation)
+                .setView(queryInput)
+                .setPositiveButton(R.string.search, (dialogInterface, i) -> searchConversation(queryInput.getText().toString()))
+                .setNegativeButton(R.string.cancel, null)
+                .show();
+    }
+
+    private void searchConversation(String query) {
+        ChatViewModel chatViewModel = ViewModelProviders.of(this).get(ChatViewModel.class);
+        chatViewModel.getChatHistory().search(query, MAX_SEARCH_RESULTS, chatModels -> {
+            if (isFinishing()) return;
+            if (chatModels.isEmpty()) {
+                Toast.makeText(this, R.string.msg_no_search_results, Toast.LENGTH_SHORT).show();
+                return;
+            }
+
+            CharSequence[] items = new CharSequence[chatModels.size()];
+            for (int x = 0; x < chatModels.size(); x++) {
+                ChatModel chatModel = chatModels.get(x);
+                String text = chatModel.isBotMessage() ? SearchIndex.getText(chatModel.botConnectorActivity) : chatModel.userRequest;
+                items[x] = text == null ? "" : text;
+            }
+            new AlertDialog.Builder(this)
+                    .setTitle(query)
+                    .setItems(items, (dialogInterface, i) -> showChatItem(chatModels.get(i).id))
+                    .setNegativeButton(R.string.cancel, null)
+                    .show();
+        });
+    }
+
+    // jump to a message, loading the messages around it if it isn't in the chat list
+    private void showChatItem(long id) {
+        if (chatAdapter.getPosition(id) >= 0) {
+            scrollToChatItem(id);
+        } else {
+            scrollToChatItemId = id;
+            chatAdapter.showChatItem(id);
+        }
+    }
+
+    private void scrollToChatItem(long id) {
+        int position = chatAdapter.getPosition(id);
+        if (position >= 0) ((LinearLayoutManager) chatRecyclerView.getLayoutManager()).scrollToPositionWithOffset(position, 0);
+    }
+
     @OnClick(R.id.nav_menu_set_as_default_assistant)
     public void onClickSetDefaultAssistant() {
         if (Settings.canDrawOverlays(this)) {
@@ -499,12 +598,7 @@ public class MainActivity extends BaseActivity
         if (msg == null || msg.length() == 0) return;
 
         try {
-            // add the users' request to the chat
-            chatAdapter.addUserRequest(msg);
-            // make the chat list scroll automatically after adding a bot response
-            chatRecyclerView.getLayoutManager().scrollToPosition(chatAdapter.getItemCount() - 1);
-
-            // send request to Bot
+            // send request to Bot, the service records it to the chat
             speechServiceBinder.sendActivityMessageAsync(msg);
 
             sfxManager.playEarconProcessing();
@@ -521,11 +615,22 @@ public class MainActivity extends BaseActivity
         }
     }
 
-    // EventBus: the connection disconnected
-    @Subscribe(threadMode = ThreadMode.MAIN)
+    // Event: the connection dropped, the service reconnects with backoff
+    public void onEventReconnecting(Reconnecting event) {
+        suggActionsAdapter.clear();
+        detectedSpeechToText.setText(R.string.msg_disconnected);
+    }
+
+    // Event: the connection is up, i.e. after reconnecting
+    public void onEventConnected(Connected event) {
+        if (getString(R.string.msg_disconnected).contentEquals(detectedSpeechToText.getText())) {
+            detectedSpeechToText.setText("");
+        }
+    }
+
+    // Event: the connection disconnected
     public void onEventDisconnected(Disconnected event) {
         try {
-            chatAdapter.resetChat();
             suggActionsAdapter.clear();
             speechServiceBinder.clearSuggestedActions();
             speechServiceBinder.disconnectAsync();
@@ -555,8 +660,7 @@ public class MainActivity extends BaseActivity
                 .show();
     }
 
-    // EventBus: the Bot is listening
-    @Subscribe(threadMode = ThreadMode.MAIN)
+    // Event: the Bot is listening
     public void onEventBotListening(BotListening event) {
 
         // Note: the SpeechService will trigger the actual listening. Since the app needs to show a
@@ -572,27 +676,23 @@ public class MainActivity extends BaseActivity
         }
     }
 
-    // EventBus: the user spoke and the app recognized intermediate speech
-    @Subscribe(threadMode = ThreadMode.MAIN)
+    // Event: the user spoke and the app recognized intermediate speech
     public void onEventRecognizedIntermediateResult(RecognizedIntermediateResult event) {
         detectedSpeechToText.setText(event.recognized_speech);
     }
 
-    // EventBus: the user spoke and the app recognized the speech. Disconnect mic.
-    @Subscribe(threadMode = ThreadMode.MAIN)
+    // Event: the user spoke and the app recognized the speech. Disconnect mic.
     public void onEventRecognized(Recognized event) {
         hideListeningAnimation();
         if (event.recognized_speech.length()>0) {
             detectedSpeechToText.setText(event.recognized_speech);
-            chatAdapter.addUserRequest(event.recognized_speech);
 
             // in 2 seconds clear the text (at this point the bot should be giving its' response)
             handler.postDelayed(() -> detectedSpeechToText.setText(""), 2000);
         }
     }
 
-    // EventBus: received a response from Bot
-    @Subscribe(threadMode = ThreadMode.MAIN)
+    // Event: received a response from Bot
     public void onEventActivityReceived(ActivityReceived activityReceived) throws IOException {
         if (activityReceived.botConnectorActivity != null) {
             BotConnectorActivity botConnectorActivity = activityReceived.botConnectorActivity;
@@ -610,11 +710,7 @@ public class MainActivity extends BaseActivity
                             Log.e(LOGTAG, exception.getMessage());
                         }
                     }
-
-                    chatAdapter.addBotResponse(botConnectorActivity);
-                    // make the chat list scroll automatically after adding a bot response
-                    chatRecyclerView.getLayoutManager().scrollToPosition(chatAdapter.getItemCount() - 1);
-
+                    // the service records the message to the chat
                     break;
                 case "dialogState":
                     Log.i(LOGTAG, "Activity with DialogState");
@@ -629,8 +725,7 @@ public class MainActivity extends BaseActivity
         }
     }
 
-    // EventBus: the previous request has timed-out
-    @Subscribe(threadMode = ThreadMode.MAIN)
+    // Event: the previous request has timed-out
     public void onEventRequestTimeout(RequestTimeout event) {
         // here you can notify the user to repeat the request
         sfxManager.playEarconDisambigError();
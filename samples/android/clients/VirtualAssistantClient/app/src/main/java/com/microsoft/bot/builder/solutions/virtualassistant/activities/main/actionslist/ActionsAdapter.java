@@ -2,6 +2,8 @@ package com.microsoft.bot.builder.solutions.virtualassistant.activities.main.act
 
 import android.support.annotation.NonNull;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.recyclerview.extensions.AsyncListDiffer;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -10,7 +12,11 @@ import android.view.ViewGroup;
 import com.microsoft.bot.builder.solutions.virtualassistant.R;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
 import client.model.CardAction;
 
@@ -19,12 +25,38 @@ public class ActionsAdapter extends RecyclerView.Adapter<ActionsViewholder> {
     // CONSTANTS
     private final int CONTENT_VIEW = R.layout.item_suggested_action;
     private static final String LOGTAG = "ActionsAdapter";
+    private static final DiffUtil.ItemCallback<ActionItem> DIFF_CALLBACK = new DiffUtil.ItemCallback<ActionItem>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull ActionItem oldItem, @NonNull ActionItem newItem) {
+            return oldItem.id == newItem.id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull ActionItem oldItem, @NonNull ActionItem newItem) {
+            return Objects.equals(oldItem.cardAction, newItem.cardAction);
+        }
+    };
 
     // STATE
-    private ArrayList<CardAction> actionsList = new ArrayList<>();
+    private final AsyncListDiffer<ActionItem> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+    private long nextId;
     private AppCompatActivity parentActivity;
     private ActionsViewholder.OnClickListener clickListener;
 
+    // an action with a stable id, kept by an equal action in the next list
+    private static class ActionItem {
+        final long id;
+        final CardAction cardAction;
+
+        ActionItem(long id, CardAction cardAction) {
+            this.id = id;
+            this.cardAction = cardAction;
+        }
+    }
+
+    public ActionsAdapter() {
+        setHasStableIds(true);
+    }
 
     @NonNull
     @Override
@@ -35,26 +67,39 @@ public class ActionsAdapter extends RecyclerView.Adapter<ActionsViewholder> {
 
     @Override
     public void onBindViewHolder(@NonNull ActionsViewholder actionsViewholder, int position) {
-        CardAction cardAction = actionsList.get(position);
-        actionsViewholder.bind(cardAction, parentActivity, clickListener, position);
+        CardAction cardAction = differ.getCurrentList().get(position).cardAction;
+        actionsViewholder.bind(cardAction, parentActivity, clickListener);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return differ.getCurrentList().get(position).id;
     }
 
     @Override
     public int getItemCount() {
-        if (actionsList == null) return 0;
-        return actionsList.size();
+        return differ.getCurrentList().size();
     }
 
     public void addAll(List<CardAction> list, AppCompatActivity parentActivity, ActionsViewholder.OnClickListener clickListener) {
         this.parentActivity = parentActivity;
         this.clickListener = clickListener;
-        actionsList.clear();
-        actionsList.addAll(list);
-        notifyDataSetChanged();
+
+        // actions also in the current list keep their id, the diff then only updates what changed
+        Map<CardAction, List<Long>> currentIds = new HashMap<>();
+        for (ActionItem item : differ.getCurrentList()) {
+            currentIds.computeIfAbsent(item.cardAction, key -> new ArrayList<>()).add(item.id);
+        }
+        List<ActionItem> items = new ArrayList<>(list.size());
+        for (CardAction cardAction : list) {
+            List<Long> ids = currentIds.get(cardAction);
+            long id = ids != null && !ids.isEmpty() ? ids.remove(0) : nextId++;
+            items.add(new ActionItem(id, cardAction));
+        }
+        differ.submitList(items);
     }
 
     public void clear(){
-        actionsList.clear();
-        notifyDataSetChanged();
+        differ.submitList(Collections.emptyList());
     }
 }
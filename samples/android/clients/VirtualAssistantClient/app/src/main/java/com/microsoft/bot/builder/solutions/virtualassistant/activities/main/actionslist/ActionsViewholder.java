@@ -39,11 +39,13 @@ public class ActionsViewholder extends RecyclerView.ViewHolder {
      * bind the layout with the data
      * @param cardAction
      */
-    void bind(@NonNull CardAction cardAction, AppCompatActivity parentActivity, @NonNull OnClickListener onClickListener, int position) {
+    void bind(@NonNull CardAction cardAction, AppCompatActivity parentActivity, @NonNull OnClickListener onClickListener) {
         textMessage.setText((String)cardAction.getValue());
 
         parentLayout.setOnClickListener(v -> {
-            onClickListener.suggestedActionClick(position); // callback to activity
+            // the position at click time, items can move without being bound again
+            int position = getAdapterPosition();
+            if (position != RecyclerView.NO_POSITION) onClickListener.suggestedActionClick(position); // callback to activity
         });
     }
 }
\ No newline at end of file
@@ -0,0 +1,139 @@
+package com.microsoft.bot.builder.solutions.virtualassistant.activities.main.chatlist;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import client.model.Attachment;
+import client.model.BotConnectorActivity;
+import io.adaptivecards.objectmodel.AdaptiveCard;
+import io.adaptivecards.objectmodel.ParseContext;
+import io.adaptivecards.objectmodel.ParseResult;
+import io.adaptivecards.renderer.AdaptiveCardRenderer;
+
+/**
+ * Parsed adaptive cards by content hash, see Attachment.getContentKey().
+ * Owned by the ChatViewModel, so the cards of the chat history are parsed once and not again
+ * when the activity is recreated (i.e. rotation) or a card scrolls back into view.
+ * Cards are parsed on a background thread as soon as their activity is received. get() is called
+ * on the main thread, it only waits for a parse already in progress. A parse still queued behind
+ * other cards is cancelled and done by get() right away.
+ * The cache is bounded by the size of the card JSON, which the parsed cards are proportional to.
+ */
+public class CardCache {
+
+    // CONSTANTS
+    private static final String LOGTAG = "CardCache";
+    public static final String CONTENT_TYPE_ADAPTIVE_CARD = "application/vnd.microsoft.card.adaptive";
+    private static final long MAX_SIZE_BYTES = Runtime.getRuntime().maxMemory() / 32;
+
+    // STATE
+    private final LruCache<String, CachedCard> cards; // by content hash
+    private final Map<String, Future<ParseResult>> pending = new HashMap<>(); // guarded by this, by content hash
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, LOGTAG);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+
+    private static class CachedCard {
+        final ParseResult parseResult;
+        final int size; // approximated by the size of the JSON it was parsed from
+
+        CachedCard(ParseResult parseResult, int size) {
+            this.parseResult = parseResult;
+            this.size = size;
+        }
+    }
+
+    public CardCache() {
+        cards = new LruCache<String, CachedCard>((int) Math.min(Integer.MAX_VALUE, MAX_SIZE_BYTES)) {
+            @Override
+            protected int sizeOf(String key, CachedCard value) {
+                return value.size;
+            }
+        };
+    }
+
+    /**
+     * Queue the adaptive cards of the activity for parsing, can be called on any thread
+     */
+    public void prefetch(BotConnectorActivity botConnectorActivity) {
+        List<Attachment> attachments = botConnectorActivity.getAttachmentList();
+        if (attachments == null) return;
+
+        for (Attachment attachment : attachments) {
+            if (!CONTENT_TYPE_ADAPTIVE_CARD.equals(attachment.getContentType())) continue;
+            String contentJson = attachment.getContentJson();
+            String key = attachment.getContentKey();
+            if (key == null || cards.get(key) != null) continue;
+
+            synchronized (this) {
+                if (executor.isShutdown() || pending.containsKey(key)) continue;
+                pending.put(key, executor.submit(() -> parse(key, contentJson)));
+            }
+        }
+    }
+
+    /**
+     * @param attachment an adaptive card attachment
+     * @return the parsed card, parsed now if it wasn't yet or is still queued
+     */
+    public ParseResult get(Attachment attachment) {
+        String key = attachment.getContentKey();
+        String contentJson = attachment.getContentJson();
+        if (key == null) return null;
+
+        CachedCard card = cards.get(key);
+        if (card != null) return card.parseResult;
+
+        Future<ParseResult> future;
+        synchronized (this) {
+            future = pending.get(key);
+        }
+        // cancel() only succeeds if the parse hasn't started, one that is running is further along than parsing again
+        if (future != null && !future.cancel(false)) {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                Log.e(LOGTAG, "prefetch failed: " + e.getCause());
+            } catch (CancellationException e) {
+                // cancelled by an earlier get(), parsed below
+            }
+        }
+        return parse(key, contentJson);
+    }
+
+    /**
+     * Stop parsing, i.e. when the view model is cleared
+     */
+    public void close() {
+        synchronized (this) {
+            executor.shutdownNow();
+            pending.clear();
+        }
+        cards.evictAll();
+    }
+
+    private ParseResult parse(String key, String contentJson) {
+        try {
+            ParseResult parseResult = AdaptiveCard.DeserializeFromString(contentJson, AdaptiveCardRenderer.VERSION, new ParseContext());
+            cards.put(key, new CachedCard(parseResult, contentJson.length() * 2));
+            return parseResult;
+        } finally {
+            synchronized (this) {
+                pending.remove(key);
+            }
+        }
+    }
+}
@@ -4,29 +4,29 @@ import android.arch.lifecycle.ViewModelProviders;
 import android.content.Context;
 import android.support.annotation.NonNull;
 import android.support.v4.app.FragmentActivity;
+import android.support.v7.recyclerview.extensions.AsyncListDiffer;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.RecyclerView;
 import android.util.Log;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.LinearLayout;
 import android.widget.RelativeLayout;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.microsoft.bot.builder.solutions.virtualassistant.R;
 import com.microsoft.bot.builder.solutions.virtualassistant.utils.RawUtils;
 
-import org.json.JSONObject;
-
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
-import java.util.stream.Collectors;
 
+import client.model.Attachment;
 import client.model.BotConnectorActivity;
 import io.adaptivecards.objectmodel.AdaptiveCard;
 import io.adaptivecards.objectmodel.HostConfig;
-import io.adaptivecards.objectmodel.ParseContext;
 import io.adaptivecards.objectmodel.ParseResult;
 import io.adaptivecards.renderer.AdaptiveCardRenderer;
 import io.adaptivecards.renderer.RenderedAdaptiveCard;
@@ -39,12 +39,29 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     private static final String LOGTAG = "ChatAdapter";
     private static final int MSG_TYPE_BOT = -1;
     private static final int MSG_TYPE_USER = -2;
+    private static final int MSG_TYPE_BOT_CARDS = -3;
+    private static final int MAX_RECYCLED_CARD_HOLDERS = 10;
+    private static final int MAX_POOLED_CARD_VIEWS = 12;
+    private static final int PAGE_SIZE = 20; // older messages loaded at a time
+    private static final DiffUtil.ItemCallback<ChatModel> DIFF_CALLBACK = new DiffUtil.ItemCallback<ChatModel>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull ChatModel oldItem, @NonNull ChatModel newItem) {
+            return oldItem.id == newItem.id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull ChatModel oldItem, @NonNull ChatModel newItem) {
+            return oldItem == newItem; // messages don't change once received
+        }
+    };
 
     // STATE
     private Context context;
-    private Gson gson;
-    private ArrayList<ChatModel> chatList; // visible chat history
-    private ArrayList<ChatModel> chatHistory; // full chat history
+    private ArrayDeque<ChatModel> chatList; // visible chat history, submitted to the differ on change
+    private AsyncListDiffer<ChatModel> differ; // the list shown
+    private ChatHistory chatHistory; // full chat history
+    private boolean loadingOlder;
+    private boolean showingRecent = true; // false after showChatItem(), until the next message
     private static int MAX_CHAT_ITEMS = 2;
     private boolean showFullConversation;
     private Integer colorBubbleBot;
@@ -52,28 +69,41 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     private Integer colorTextBot;
     private Integer colorTextUser;
     private ChatViewModel chatViewModel;
+    private CardCache cardCache;
     private HostConfig hostConfig;
+    private int cardWidth;
+    private final RecyclerView.RecycledViewPool recycledViewPool = new RecyclerView.RecycledViewPool();
+    private final LruCache<String, View> cardViews = new LruCache<>(MAX_POOLED_CARD_VIEWS); // rendered cards not in a holder, by content hash
 
     public ChatAdapter(Context context) {
         this.context = context;
-        this.gson = new GsonBuilder().disableHtmlEscaping().create();
 
         // load chat history from view model
         chatViewModel = ViewModelProviders.of((FragmentActivity) context).get(ChatViewModel.class);
-        chatHistory = chatViewModel.getChatHistory().getValue();
+        chatHistory = chatViewModel.getChatHistory();
+        chatHistory.setItemListener(this::onItemAdded);
         showFullConversation = chatViewModel.getShowFullConversation().getValue();
+        cardCache = chatViewModel.getCardCache();
 
         // adaptive cards renderer related
-        CardRendererRegistration.getInstance().registerResourceResolver("data", new SvgImageLoader());
+        CardRendererRegistration.getInstance().registerResourceResolver("data", chatViewModel.getImageLoader());
         hostConfig = HostConfig.DeserializeFromString(RawUtils.loadHostConfig(context));
+        recycledViewPool.setMaxRecycledViews(MSG_TYPE_BOT_CARDS, MAX_RECYCLED_CARD_HOLDERS);
+
+        setHasStableIds(true);
+        differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
 
         // filter chat history by the value of showFullConversation
-        if (showFullConversation) {
-            chatList = new ArrayList<>(chatHistory);
-        } else {
-            chatList = (ArrayList<ChatModel>) chatHistory.stream().filter(chatModel -> chatModel.userRequest == null).collect(Collectors.toList());
+        chatList = new ArrayDeque<>(chatHistory.getRecent(MAX_CHAT_ITEMS, showFullConversation));
+        submitChatList();
+        if (chatList.isEmpty()) {
+            // i.e. after a restart, show the end of the previous session
+            chatHistory.loadBefore(Long.MAX_VALUE, MAX_CHAT_ITEMS, showFullConversation, chatModels -> {
+                if (!chatList.isEmpty()) return;
+                chatList.addAll(chatModels);
+                submitChatList();
+            });
         }
-        this.notifyDataSetChanged();
     }
 
     @NonNull
@@ -81,56 +111,16 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     public RecyclerView.ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
         RecyclerView.ViewHolder viewHolder;
 
-        if (viewType == MSG_TYPE_BOT) {
-            View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_chat_bot, parent, false);
-            viewHolder = new ViewHolderBot(view);
-        } else if (viewType == MSG_TYPE_USER) {
+        if (viewType == MSG_TYPE_USER) {
             View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_chat_user, parent, false);
             viewHolder = new ViewHolderUser(view);
+        } else if (viewType == MSG_TYPE_BOT_CARDS) {
+            View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_chat_bot, parent, false);
+            viewHolder = new ViewHolderBotCards(view);
+            cardWidth = parent.getWidth() * 3 / 4;
         } else {
             View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.item_chat_bot, parent, false);
             viewHolder = new ViewHolderBot(view);
-
-            // render cards when creating view holders for better performance
-            ChatModel chatModel = chatList.get(viewType); // use viewType to pass value of position
-            BotConnectorActivity botConnectorActivity = chatModel.botConnectorActivity;
-            View botCards = view.findViewById(R.id.bot_cards);
-            botCards.setVisibility(View.VISIBLE); // bot cards is hidden by default, set to visible if cards exist
-
-            RelativeLayout cardsContainer = view.findViewById(R.id.cards_container);
-
-            // generate horizontal or vertical carousel of cards
-            for (int x = 0; x < botConnectorActivity.getAttachments().size(); x++) {
-                String cardJson = gson.toJson(botConnectorActivity.getAttachments().get(x));
-                try {
-                    JSONObject cardJsonObject = new JSONObject(cardJson);
-                    String contentType = cardJsonObject.getString("contentType");
-
-                    // only adaptive cards supported for now
-                    if (Objects.equals(contentType, "application/vnd.microsoft.card.adaptive")) {
-                        JSONObject content = cardJsonObject.getJSONObject("content");
-                        ParseContext parseContext = new ParseContext();
-                        ParseResult parseResult = AdaptiveCard.DeserializeFromString(content.toString(), AdaptiveCardRenderer.VERSION, parseContext);
-                        AdaptiveCard adaptiveCard = parseResult.GetAdaptiveCard();
-                        RenderedAdaptiveCard renderedAdaptiveCard = AdaptiveCardRenderer.getInstance().render(
-                                context, ((FragmentActivity)context).getSupportFragmentManager(), adaptiveCard, (ICardActionHandler) context, hostConfig);
-
-                        // get view from rendered adaptive card
-                        View renderedAdaptiveCardView = renderedAdaptiveCard.getView();
-                        renderedAdaptiveCardView.setFocusable(false);
-                        renderedAdaptiveCardView.setFocusableInTouchMode(false);
-                        renderedAdaptiveCardView.setBackgroundColor(colorBubbleBot);
-
-                        // workaround of adaptive card render issue
-                        renderedAdaptiveCardView.setLayoutParams(new LinearLayout.LayoutParams(parent.getWidth() * 3 / 4, LinearLayout.LayoutParams.WRAP_CONTENT));
-
-                        // add the view to the existing card container
-                        cardsContainer.addView(renderedAdaptiveCardView);
-                    }
-                } catch (Exception e) {
-                    Log.e(LOGTAG, e.getMessage());
-                }
-            }
         }
 
         return viewHolder;
@@ -138,95 +128,212 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
 
     @Override
     public void onBindViewHolder(@NonNull RecyclerView.ViewHolder viewHolder, int position) {
-        ChatModel chatModel = chatList.get(position);
-        if (getItemViewType(position) == MSG_TYPE_USER) {
+        ChatModel chatModel = differ.getCurrentList().get(position);
+        int viewType = getItemViewType(position);
+        if (viewType == MSG_TYPE_USER) {
             ((ViewHolderUser)viewHolder).bind(chatModel, colorBubbleUser, colorTextUser);
         } else {
             ((ViewHolderBot)viewHolder).bind(chatModel, colorBubbleBot, colorTextBot);
+            if (viewType == MSG_TYPE_BOT_CARDS) bindCards((ViewHolderBotCards) viewHolder, chatModel.botConnectorActivity);
         }
     }
 
     @Override
     public int getItemViewType(int position) {
-        ChatModel chatModel = chatList.get(position);
+        ChatModel chatModel = differ.getCurrentList().get(position);
         if (!chatModel.isBotMessage()) {
             return MSG_TYPE_USER; // user message
         } else if (!chatModel.hasAttachments()) {
             return MSG_TYPE_BOT; // bot message without cards
         } else {
-            return position; // bot message with cards, use viewType to pass value of position
+            return MSG_TYPE_BOT_CARDS; // bot message with cards
+        }
+    }
+
+    /**
+     * Share it with the RecyclerView, it is sized for the card view holders
+     */
+    public RecyclerView.RecycledViewPool getRecycledViewPool() {
+        return recycledViewPool;
+    }
+
+    // generate horizontal or vertical carousel of cards, reusing the views already rendered
+    private void bindCards(ViewHolderBotCards viewHolder, BotConnectorActivity botConnectorActivity) {
+        List<Attachment> cards = new ArrayList<>();
+        List<String> cardKeys = new ArrayList<>();
+        for (Attachment attachment : botConnectorActivity.getAttachmentList()) {
+            // only adaptive cards supported for now
+            if (Objects.equals(attachment.getContentType(), CardCache.CONTENT_TYPE_ADAPTIVE_CARD) && attachment.getContentKey() != null) {
+                cards.add(attachment);
+                cardKeys.add(attachment.getContentKey());
+            }
+        }
+
+        RelativeLayout cardsContainer = viewHolder.cardsContainer;
+        if (!cardKeys.equals(viewHolder.cardKeys)) {
+            // return the views of the previous message to the pool
+            List<View> previousViews = new ArrayList<>();
+            for (int x = 0; x < cardsContainer.getChildCount(); x++) previousViews.add(cardsContainer.getChildAt(x));
+            cardsContainer.removeAllViews();
+            for (int x = 0; x < previousViews.size(); x++) cardViews.put(viewHolder.cardKeys.get(x), previousViews.get(x));
+            viewHolder.cardKeys.clear();
+
+            for (int x = 0; x < cardKeys.size(); x++) {
+                View cardView = cardViews.remove(cardKeys.get(x));
+                if (cardView == null) cardView = renderCard(cards.get(x));
+                if (cardView == null) continue;
+
+                // add the view to the existing card container
+                cardsContainer.addView(cardView);
+                viewHolder.cardKeys.add(cardKeys.get(x));
+            }
+        }
+
+        for (int x = 0; x < cardsContainer.getChildCount(); x++) {
+            View cardView = cardsContainer.getChildAt(x);
+            if (colorBubbleBot != null) cardView.setBackgroundColor(colorBubbleBot);
+            // workaround of adaptive card render issue
+            if (cardView.getLayoutParams() == null || cardView.getLayoutParams().width != cardWidth) {
+                cardView.setLayoutParams(new LinearLayout.LayoutParams(cardWidth, LinearLayout.LayoutParams.WRAP_CONTENT));
+            }
+        }
+    }
+
+    private View renderCard(Attachment card) {
+        try {
+            ParseResult parseResult = cardCache.get(card);
+            AdaptiveCard adaptiveCard = parseResult.GetAdaptiveCard();
+            RenderedAdaptiveCard renderedAdaptiveCard = AdaptiveCardRenderer.getInstance().render(
+                    context, ((FragmentActivity)context).getSupportFragmentManager(), adaptiveCard, (ICardActionHandler) context, hostConfig);
+
+            // get view from rendered adaptive card
+            View renderedAdaptiveCardView = renderedAdaptiveCard.getView();
+            renderedAdaptiveCardView.setFocusable(false);
+            renderedAdaptiveCardView.setFocusableInTouchMode(false);
+            return renderedAdaptiveCardView;
+        } catch (Exception e) {
+            Log.e(LOGTAG, e.getMessage());
+            return null;
         }
     }
 
+    @Override
+    public long getItemId(int position) {
+        return differ.getCurrentList().get(position).id;
+    }
+
     @Override
     public int getItemCount() {
-        if (chatList == null) return 0;
-        return chatList.size();
+        return differ.getCurrentList().size();
     }
 
     public void setShowFullConversation(boolean showFullConversation){
         // only if showFullConversation changed
         if (this.showFullConversation != showFullConversation) {
             this.showFullConversation = showFullConversation;
-            chatList.clear();
             // filter chat history by the value of showFullConversation
-            if (this.showFullConversation) {
-                chatList = new ArrayList<>(chatHistory);
-            } else {
-                chatList = (ArrayList<ChatModel>) chatHistory.stream().filter(chatModel -> chatModel.userRequest == null).collect(Collectors.toList());
-            }
+            chatList = new ArrayDeque<>(chatHistory.getRecent(MAX_CHAT_ITEMS, showFullConversation));
             chatViewModel.setShowFullConversation(showFullConversation);
-            notifyDataSetChanged();
+            submitChatList();
         }
     }
 
-    public void addBotResponse(BotConnectorActivity botConnectorActivity) {
-        ChatModel chatModel = new ChatModel(botConnectorActivity);
-        chatHistory.add(chatModel);
-        chatViewModel.setChatHistory(chatHistory);
-        chatList.add(chatModel);
-        if (chatList.size() > MAX_CHAT_ITEMS) {
-            chatList.remove(0);
-        }
-        notifyDataSetChanged();
-    }
-
-    public void addUserRequest(String request) {
-        ChatModel chatModel = new ChatModel(request);
-        chatHistory.add(chatModel);
-        chatViewModel.setChatHistory(chatHistory);
-        if (showFullConversation) {
-            chatList.add(chatModel);
-            if (chatList.size() > MAX_CHAT_ITEMS) {
-                chatList.remove(0);
-            }
-            notifyDataSetChanged();
+    // a bot message or user request was recorded by the SpeechService
+    private void onItemAdded(ChatModel chatModel) {
+        if (!chatModel.isBotMessage() && !showFullConversation) return;
+        if (showingRecent) {
+            chatList.addLast(chatModel);
+            trimChatList();
+        } else {
+            // back from the messages around a search result
+            chatList = new ArrayDeque<>(chatHistory.getRecent(MAX_CHAT_ITEMS, showFullConversation));
+            showingRecent = true;
         }
+        submitChatList();
     }
 
     public void setChatItemHistoryCount(int count){
         MAX_CHAT_ITEMS = count;
-        while (chatList.size() > MAX_CHAT_ITEMS) {
-            chatList.remove(0);
-        }
-        notifyDataSetChanged();
+        trimChatList();
+        submitChatList();
     }
 
     public void resetChat(){
+        showingRecent = true;
         chatList.clear();
         chatHistory.clear();
-        chatViewModel.setChatHistory(chatHistory);
-        notifyDataSetChanged();
+        cardViews.evictAll();
+        submitChatList();
     }
 
     public void setChatBubbleColors(Integer colorBubbleBot, Integer colorBubbleUser){
+        if (Objects.equals(this.colorBubbleBot, colorBubbleBot) && Objects.equals(this.colorBubbleUser, colorBubbleUser)) return;
         this.colorBubbleBot = colorBubbleBot;
         this.colorBubbleUser = colorBubbleUser;
+        notifyItemRangeChanged(0, getItemCount());
     }
 
     public void setChatTextColors(Integer colorTextBot, Integer colorTextUser){
+        if (Objects.equals(this.colorTextBot, colorTextBot) && Objects.equals(this.colorTextUser, colorTextUser)) return;
         this.colorTextBot = colorTextBot;
         this.colorTextUser = colorTextUser;
+        notifyItemRangeChanged(0, getItemCount());
+    }
+
+    /**
+     * Show a page of older messages, i.e. when the user scrolled to the top.
+     * Only in full conversation mode, the bot-only list shows the most recent responses.
+     */
+    public void loadOlder() {
+        ChatModel oldest = chatList.peekFirst();
+        if (!showFullConversation || loadingOlder || oldest == null) return;
+
+        loadingOlder = true;
+        chatHistory.loadBefore(oldest.id, PAGE_SIZE, true, chatModels -> {
+            loadingOlder = false;
+            // skip the page if the list changed meanwhile
+            if (chatModels.isEmpty() || !showFullConversation || chatList.peekFirst() != oldest) return;
+            for (int x = chatModels.size() - 1; x >= 0; x--) chatList.addFirst(chatModels.get(x));
+            submitChatList();
+        });
+    }
+
+    /**
+     * Show the messages around a message, i.e. a search result.
+     * The list is updated asynchronously, use getPosition() once it is.
+     */
+    public void showChatItem(long id) {
+        showingRecent = false;
+        chatHistory.loadAround(id, Math.max(MAX_CHAT_ITEMS, PAGE_SIZE), showFullConversation, chatModels -> {
+            if (chatModels.isEmpty() || showingRecent) return;
+            chatList = new ArrayDeque<>(chatModels);
+            submitChatList();
+        });
+    }
+
+    /**
+     * @return position of the message, or of the next one shown if it is filtered out (i.e. a user
+     * request in the bot only list), -1 if it isn't in the list
+     */
+    public int getPosition(long id) {
+        List<ChatModel> currentList = differ.getCurrentList();
+        if (currentList.isEmpty() || currentList.get(0).id > id || currentList.get(currentList.size() - 1).id < id) return -1;
+        for (int x = 0; x < currentList.size(); x++) {
+            if (currentList.get(x).id >= id) return x;
+        }
+        return -1;
+    }
+
+    // drops the oldest messages, including the pages loaded by loadOlder()
+    private void trimChatList() {
+        while (chatList.size() > MAX_CHAT_ITEMS) {
+            chatList.removeFirst();
+        }
+    }
+
+    // the diff is computed on a background thread, the adapter shows the previous list until it's done
+    private void submitChatList() {
+        differ.submitList(new ArrayList<>(chatList));
     }
 
 }
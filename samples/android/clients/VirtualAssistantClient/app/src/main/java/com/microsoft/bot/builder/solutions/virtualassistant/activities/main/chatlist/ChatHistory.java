@@ -0,0 +1,269 @@
+package com.microsoft.bot.builder.solutions.virtualassistant.activities.main.chatlist;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.microsoft.bot.builder.solutions.directlinespeech.ActivityJsonReader;
+import com.microsoft.bot.builder.solutions.virtualassistant.transcript.SearchIndex;
+import com.microsoft.bot.builder.solutions.virtualassistant.transcript.TranscriptRecorder;
+import com.microsoft.bot.builder.solutions.virtualassistant.transcript.TranscriptStore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import client.model.BotConnectorActivity;
+
+/**
+ * Chat history, with flat memory use however long the app runs.
+ * The items are recorded to the TranscriptStore by the TranscriptRecorder, their sequence number
+ * there is the id of the ChatModel. The most recent CAPACITY items of this session are also kept
+ * in memory in a ring, older ones (including the ones of previous sessions) are read back from
+ * the transcript a page at a time when the user scrolls up.
+ * Loads and searches wait for the transcript to be opened. Reading runs on a background thread,
+ * the other methods are main thread only.
+ */
+public class ChatHistory {
+
+    // CONSTANTS
+    private static final String LOGTAG = "ChatHistory";
+    private static final int CAPACITY = 200; // items kept in memory
+    private static final int READ_CHUNK = 32; // transcript records read at a time when paging
+
+    public interface PageListener {
+        /**
+         * Called on the main thread
+         * @param chatModels in chat order, empty if there are no older items
+         */
+        void onPageLoaded(List<ChatModel> chatModels);
+    }
+
+    public interface SearchListener {
+        /**
+         * Called on the main thread
+         * @param chatModels the matching items, most recent first
+         */
+        void onSearchCompleted(List<ChatModel> chatModels);
+    }
+
+    public interface ItemListener {
+        /**
+         * Called on the main thread when an item is recorded, including while the UI is stopped
+         */
+        void onItemAdded(ChatModel chatModel);
+    }
+
+    // STATE
+    private final ChatModel[] ring = new ChatModel[CAPACITY]; // item with id n at n % CAPACITY
+    private final TranscriptRecorder transcriptRecorder;
+    private final TranscriptRecorder.Listener recorderListener;
+    private TranscriptStore transcriptStore; // null if it couldn't be opened, the history is then memory only
+    private SearchIndex searchIndex; // null if the transcript couldn't be opened
+    private boolean opened;
+    private final List<Runnable> whenOpened = new ArrayList<>(); // loads and searches requested before
+    private long firstId; // items before were cleared, or dropped from the transcript
+    private long nextId;
+    private ItemListener itemListener;
+    private final ActivityJsonReader activityJsonReader = new ActivityJsonReader(new Gson());
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, LOGTAG));
+
+    public ChatHistory(TranscriptRecorder transcriptRecorder) {
+        this.transcriptRecorder = transcriptRecorder;
+        recorderListener = new TranscriptRecorder.Listener() {
+            @Override
+            public void onOpened(TranscriptStore transcriptStore, SearchIndex searchIndex, long nextSequence) {
+                long firstSequence = transcriptStore != null ? transcriptStore.getFirstSequence() : nextSequence;
+                handler.post(() -> open(transcriptStore, searchIndex, firstSequence, nextSequence));
+            }
+
+            @Override
+            public void onRecorded(long sequence, BotConnectorActivity botConnectorActivity, String request) {
+                ChatModel chatModel = botConnectorActivity != null ? new ChatModel(sequence, botConnectorActivity) : new ChatModel(sequence, request);
+                handler.post(() -> {
+                    add(chatModel);
+                    if (itemListener != null) itemListener.onItemAdded(chatModel);
+                });
+            }
+        };
+        transcriptRecorder.addListener(recorderListener);
+    }
+
+    /**
+     * @param itemListener replaces the previous one, i.e. the adapter of a destroyed activity
+     */
+    public void setItemListener(ItemListener itemListener) {
+        this.itemListener = itemListener;
+    }
+
+    /**
+     * @param count maximum number of items
+     * @param includeUserRequests false for bot messages only
+     * @return the most recent items of this session, in chat order
+     */
+    public List<ChatModel> getRecent(int count, boolean includeUserRequests) {
+        List<ChatModel> chatModels = new ArrayList<>();
+        for (long id = nextId - 1; id >= getRingStart() && chatModels.size() < count; id--) {
+            ChatModel chatModel = getFromRing(id);
+            if (chatModel == null) break;
+            if (includeUserRequests || chatModel.isBotMessage()) chatModels.add(chatModel);
+        }
+        Collections.reverse(chatModels);
+        return chatModels;
+    }
+
+    /**
+     * Load the items before an item, from memory or from the transcript
+     * @param id of the item, i.e. the first one shown, Long.MAX_VALUE for the most recent items
+     * @param count maximum number of items
+     * @param includeUserRequests false for bot messages only
+     */
+    public void loadBefore(long id, int count, boolean includeUserRequests, PageListener listener) {
+        load(id, count, includeUserRequests, listener);
+    }
+
+    /**
+     * Load the items around an item, i.e. a search result
+     * @param count maximum number of items, about half of them after the item
+     * @param includeUserRequests false for bot messages only
+     */
+    public void loadAround(long id, int count, boolean includeUserRequests, PageListener listener) {
+        load(id + 1 + count / 2, count, includeUserRequests, listener);
+    }
+
+    // load the items from firstId to id (exclusive)
+    private void load(long id, int count, boolean includeUserRequests, PageListener listener) {
+        if (!opened) {
+            whenOpened.add(() -> load(id, count, includeUserRequests, listener));
+            return;
+        }
+
+        // newest first while collecting
+        List<ChatModel> chatModels = new ArrayList<>();
+        long previousId = Math.min(id, nextId) - 1;
+        for (; previousId >= getRingStart() && chatModels.size() < count; previousId--) {
+            ChatModel chatModel = getFromRing(previousId);
+            if (chatModel == null) break;
+            if (includeUserRequests || chatModel.isBotMessage()) chatModels.add(chatModel);
+        }
+
+        if (chatModels.size() == count || previousId < firstId || transcriptStore == null) {
+            Collections.reverse(chatModels);
+            handler.post(() -> listener.onPageLoaded(chatModels));
+            return;
+        }
+
+        final long readEnd = previousId + 1;
+        final long readStart = firstId;
+        final TranscriptStore transcriptStore = this.transcriptStore;
+        executor.execute(() -> {
+            try {
+                for (long end = readEnd; end > readStart && chatModels.size() < count; end -= READ_CHUNK) {
+                    long start = Math.max(readStart, end - READ_CHUNK);
+                    List<TranscriptStore.Record> records = transcriptStore.read(start, (int) (end - start));
+                    for (int x = records.size() - 1; x >= 0 && chatModels.size() < count; x--) {
+                        ChatModel chatModel = toChatModel(records.get(x));
+                        if (chatModel != null && (includeUserRequests || chatModel.isBotMessage())) chatModels.add(chatModel);
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(LOGTAG, "read failed: " + e.getMessage());
+            }
+            Collections.reverse(chatModels);
+            handler.post(() -> listener.onPageLoaded(chatModels));
+        });
+    }
+
+    /**
+     * Search the whole transcript, see SearchIndex.search()
+     * @param limit maximum number of results
+     */
+    public void search(String query, int limit, SearchListener listener) {
+        if (!opened) {
+            whenOpened.add(() -> search(query, limit, listener));
+            return;
+        }
+
+        List<ChatModel> chatModels = new ArrayList<>();
+        final TranscriptStore transcriptStore = this.transcriptStore;
+        final SearchIndex searchIndex = this.searchIndex;
+        if (searchIndex == null) {
+            handler.post(() -> listener.onSearchCompleted(chatModels));
+            return;
+        }
+
+        executor.execute(() -> {
+            try {
+                for (long id : searchIndex.search(query, limit)) {
+                    List<TranscriptStore.Record> records = transcriptStore.read(id, 1);
+                    ChatModel chatModel = records.isEmpty() ? null : toChatModel(records.get(0));
+                    if (chatModel != null) chatModels.add(chatModel);
+                }
+            } catch (IOException e) {
+                Log.e(LOGTAG, "search failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            handler.post(() -> listener.onSearchCompleted(chatModels));
+        });
+    }
+
+    /**
+     * Clear the chat, and delete its items from the transcript and the search index
+     */
+    public void clear() {
+        if (!opened) {
+            whenOpened.add(this::clear);
+            return;
+        }
+
+        for (int x = 0; x < CAPACITY; x++) ring[x] = null;
+        firstId = nextId;
+        if (transcriptStore != null) transcriptStore.purge();
+    }
+
+    /**
+     * Release the history, i.e. when the view model is cleared
+     */
+    public void close() {
+        transcriptRecorder.removeListener(recorderListener);
+        itemListener = null;
+        executor.shutdown();
+    }
+
+    private void open(TranscriptStore transcriptStore, SearchIndex searchIndex, long firstSequence, long nextSequence) {
+        this.transcriptStore = transcriptStore;
+        this.searchIndex = searchIndex;
+        firstId = firstSequence;
+        nextId = nextSequence;
+        opened = true;
+        for (Runnable runnable : whenOpened) runnable.run();
+        whenOpened.clear();
+    }
+
+    private long getRingStart() {
+        return Math.max(firstId, nextId - CAPACITY);
+    }
+
+    // null if the item is not in memory, i.e. it is from a previous session
+    private ChatModel getFromRing(long id) {
+        ChatModel chatModel = ring[(int) (id % CAPACITY)];
+        return chatModel != null && chatModel.id == id ? chatModel : null;
+    }
+
+    private void add(ChatModel chatModel) {
+        ring[(int) (chatModel.id % CAPACITY)] = chatModel;
+        nextId = chatModel.id + 1;
+    }
+
+    private ChatModel toChatModel(TranscriptStore.Record record) {
+        if (record.type == TranscriptStore.TYPE_USER) return new ChatModel(record.sequence, record.payload);
+        BotConnectorActivity botConnectorActivity = activityJsonReader.read(record.payload);
+        return botConnectorActivity == null ? null : new ChatModel(record.sequence, botConnectorActivity);
+    }
+}
@@ -3,14 +3,17 @@ package com.microsoft.bot.builder.solutions.virtualassistant.activities.main.cha
 import client.model.BotConnectorActivity;
 
 public class ChatModel {
+    public final long id; // stable id of the message, assigned in order by the ChatHistory
     public BotConnectorActivity botConnectorActivity;
     public String userRequest;
 
-    public ChatModel(BotConnectorActivity botConnectorActivity) {
+    public ChatModel(long id, BotConnectorActivity botConnectorActivity) {
+        this.id = id;
         this.botConnectorActivity = botConnectorActivity;
     }
 
-    public ChatModel(String userRequest) {
+    public ChatModel(long id, String userRequest) {
+        this.id = id;
         this.userRequest = userRequest;
     }
 
@@ -20,8 +23,8 @@ public class ChatModel {
 
     public boolean hasAttachments() {
         if (this.botConnectorActivity != null) {
-            if (this.botConnectorActivity.getAttachments() != null) {
-                return this.botConnectorActivity.getAttachments().size() > 0;
+            if (this.botConnectorActivity.getAttachmentList() != null) {
+                return this.botConnectorActivity.getAttachmentList().size() > 0;
             }
         }
         return false;
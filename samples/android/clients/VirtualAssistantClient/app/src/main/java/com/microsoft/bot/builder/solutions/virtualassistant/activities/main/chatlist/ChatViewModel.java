@@ -1,25 +1,59 @@
 package com.microsoft.bot.builder.solutions.virtualassistant.activities.main.chatlist;
 
+import android.app.Application;
+import android.arch.lifecycle.AndroidViewModel;
 import android.arch.lifecycle.LiveData;
 import android.arch.lifecycle.MutableLiveData;
-import android.arch.lifecycle.ViewModel;
+import android.support.annotation.NonNull;
 
-import java.util.ArrayList;
+import com.microsoft.bot.builder.solutions.virtualassistant.transcript.TranscriptRecorder;
 
-public class ChatViewModel extends ViewModel {
-    private MutableLiveData<ArrayList<ChatModel>> chatHistory;
+import events.ActivityReceived;
+import events.EventDispatcher;
+
+public class ChatViewModel extends AndroidViewModel {
+
+    // STATE
+    private final ChatHistory chatHistory;
     private MutableLiveData<Boolean> showFullConversation;
+    private final CardCache cardCache = new CardCache();
+    private final SvgImageLoader imageLoader;
+
+    public ChatViewModel(@NonNull Application application) {
+        super(application);
+        // the transcript is opened in the background, and recorded to by the SpeechService
+        chatHistory = new ChatHistory(TranscriptRecorder.getInstance(application));
+        imageLoader = new SvgImageLoader(application);
+
+        // start parsing the cards right away, on the thread that received the activity
+        EventDispatcher.getDefault().register(this, ActivityReceived.class, EventDispatcher.ThreadMode.POSTING, this::onEventActivityReceived);
+    }
+
+    @Override
+    protected void onCleared() {
+        EventDispatcher.getDefault().unregister(this);
+        cardCache.close();
+        imageLoader.close();
+        chatHistory.close();
+    }
 
-    public LiveData<ArrayList<ChatModel>> getChatHistory() {
-        if (chatHistory == null) {
-            chatHistory = new MutableLiveData<>();
-            chatHistory.setValue(new ArrayList<>());
+    // Event: received a response from Bot
+    private void onEventActivityReceived(ActivityReceived activityReceived) {
+        if (activityReceived.botConnectorActivity != null) {
+            cardCache.prefetch(activityReceived.botConnectorActivity);
         }
-        return chatHistory;
     }
 
-    public void setChatHistory(ArrayList<ChatModel> chatHistory) {
-        this.chatHistory.setValue(chatHistory);
+    public CardCache getCardCache() {
+        return cardCache;
+    }
+
+    public SvgImageLoader getImageLoader() {
+        return imageLoader;
+    }
+
+    public ChatHistory getChatHistory() {
+        return chatHistory;
     }
 
     public LiveData<Boolean> getShowFullConversation() {
@@ -1,16 +1,29 @@
 package com.microsoft.bot.builder.solutions.virtualassistant.activities.main.chatlist;
 
+import android.content.Context;
+import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.Base64;
+import android.util.Log;
+import android.util.LruCache;
 
+import com.microsoft.bot.builder.solutions.directlinespeech.utils.HashUtils;
 import com.pixplicity.sharp.Sharp;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 import io.adaptivecards.objectmodel.AdaptiveBase64Util;
 import io.adaptivecards.objectmodel.CharVector;
@@ -19,69 +32,215 @@ import io.adaptivecards.renderer.IResourceResolver;
 import io.adaptivecards.renderer.Util;
 import io.adaptivecards.renderer.http.HttpRequestResult;
 
+/**
+ * Resolves the data: URI images of adaptive cards.
+ * Owned by the ChatViewModel. The decoded images are kept in memory by data URI and width, so
+ * rendering a card again decodes nothing and every card showing an image shares one Bitmap.
+ * Rasterized SVGs are also kept on disk, they are the expensive ones to decode.
+ * Other images are decoded downsampled to the width they are shown at.
+ */
 public class SvgImageLoader implements IResourceResolver
 {
+    // CONSTANTS
+    private static final String LOGTAG = "SvgImageLoader";
+    private static final String DISK_CACHE_DIRECTORY = "card_images";
+    private static final long MAX_MEMORY_CACHE_BYTES = Runtime.getRuntime().maxMemory() / 8;
+    private static final long MAX_DISK_CACHE_BYTES = 20 * 1024 * 1024;
+
+    // STATE
+    private final LruCache<ImageKey, Bitmap> bitmaps;
+    private final File diskCacheDir;
+    private final ExecutorService diskExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, LOGTAG);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    // the data URI itself is the key in memory, a SHA-256 of it is only computed for the disk cache
+    private static class ImageKey {
+        final String uri;
+        final int width;
+
+        ImageKey(String uri, int width) {
+            this.uri = uri;
+            this.width = width;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ImageKey)) return false;
+            ImageKey other = (ImageKey) o;
+            return width == other.width && uri.equals(other.uri);
+        }
+
+        @Override
+        public int hashCode() {
+            return uri.hashCode() * 31 + width;
+        }
+    }
+
+    public SvgImageLoader(Context context)
+    {
+        bitmaps = new LruCache<ImageKey, Bitmap>((int) Math.min(Integer.MAX_VALUE, MAX_MEMORY_CACHE_BYTES)) {
+            @Override
+            protected int sizeOf(ImageKey key, Bitmap value) {
+                return value.getAllocationByteCount() + key.uri.length() * 2; // the key keeps the URI
+            }
+        };
+        diskCacheDir = new File(context.getCacheDir(), DISK_CACHE_DIRECTORY);
+    }
+
     @Override
     public HttpRequestResult<Bitmap> resolveImageResource(String uri, GenericImageLoaderAsync genericImageLoaderAsync) throws IOException, URISyntaxException
     {
-        Bitmap bitmap;
-        String dataUri = AdaptiveBase64Util.ExtractDataFromUri(uri);
-        CharVector decodedDataUri = AdaptiveBase64Util.Decode(dataUri);
-        byte[] decodedByteArray = Util.getBytes(decodedDataUri);
-        bitmap = BitmapFactory.decodeByteArray(decodedByteArray, 0, decodedByteArray.length);
-
-        return new HttpRequestResult<>(bitmap);
+        // no width given, no point decoding wider than the screen
+        return resolveImageResource(uri, genericImageLoaderAsync, Resources.getSystem().getDisplayMetrics().widthPixels);
     }
 
     @Override
     public HttpRequestResult<Bitmap> resolveImageResource(String uri, GenericImageLoaderAsync genericImageLoaderAsync, int maxWidth) throws IOException, URISyntaxException
     {
-        Bitmap bitmap;
-        if (uri.startsWith("data:image/svg")) {
-            // unescape CR/LF in base64 URI
-            String dataUri = AdaptiveBase64Util.ExtractDataFromUri(uri)
-                    .replaceAll("%0D", "\r")
-                    .replaceAll("%0A", "\n");
-            byte[] decodedByteArray = Base64.decode(dataUri, Base64.NO_WRAP);
-            String decodedSvgString = new String(decodedByteArray);
-            Sharp sharp = Sharp.loadString(decodedSvgString);
-            Drawable drawable = sharp.getDrawable();
-            bitmap = drawableToBitmap(drawable, maxWidth);
-        }
-        else
-        {
-            try
-            {
-                return genericImageLoaderAsync.loadDataUriImage(uri);
-            }
-            catch (Exception e)
-            {
-                return new HttpRequestResult<>(e);
+        ImageKey key = new ImageKey(uri, maxWidth);
+        Bitmap bitmap = bitmaps.get(key);
+        if (bitmap != null) return new HttpRequestResult<>(bitmap);
+
+        try {
+            if (uri.startsWith("data:image/svg")) {
+                String diskKey = HashUtils.sha256Hex(uri + "#" + maxWidth);
+                bitmap = readFromDisk(diskKey);
+                if (bitmap == null) {
+                    bitmap = rasterizeSvg(uri, maxWidth);
+                    writeToDisk(diskKey, bitmap);
+                }
+            } else {
+                bitmap = decodeImage(uri, maxWidth);
+                if (bitmap == null) {
+                    // not base64, let the renderer try
+                    return genericImageLoaderAsync.loadDataUriImage(uri);
+                }
             }
+        } catch (OutOfMemoryError e) {
+            Log.e(LOGTAG, "out of memory decoding a " + uri.length() + " chars image at width " + maxWidth);
+            bitmaps.evictAll();
+            return new HttpRequestResult<>(new Exception("out of memory"));
+        } catch (Exception e) {
+            return new HttpRequestResult<>(e);
         }
 
+        bitmaps.put(key, bitmap);
         return new HttpRequestResult<>(bitmap);
     }
 
+    /**
+     * Release the memory cache, i.e. when the view model is cleared
+     */
+    public void close()
+    {
+        bitmaps.evictAll();
+        diskExecutor.shutdown();
+    }
+
+    // decoded at the smallest power of 2 scale still as wide as maxWidth, null if not decodable
+    private static Bitmap decodeImage(String uri, int maxWidth)
+    {
+        String dataUri = AdaptiveBase64Util.ExtractDataFromUri(uri);
+        CharVector decodedDataUri = AdaptiveBase64Util.Decode(dataUri);
+        byte[] decodedByteArray = Util.getBytes(decodedDataUri);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(decodedByteArray, 0, decodedByteArray.length, options);
+        if (options.outWidth <= 0) return null;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = 1;
+        while (maxWidth > 0 && options.outWidth / (options.inSampleSize * 2) >= maxWidth) {
+            options.inSampleSize *= 2;
+        }
+        // JPEGs have no alpha, half the memory for them
+        options.inPreferredConfig = "image/jpeg".equals(options.outMimeType) ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        return BitmapFactory.decodeByteArray(decodedByteArray, 0, decodedByteArray.length, options);
+    }
+
+    private static Bitmap rasterizeSvg(String uri, int maxWidth)
+    {
+        // unescape CR/LF in base64 URI
+        String dataUri = AdaptiveBase64Util.ExtractDataFromUri(uri)
+                .replaceAll("%0D", "\r")
+                .replaceAll("%0A", "\n");
+        byte[] decodedByteArray = Base64.decode(dataUri, Base64.NO_WRAP);
+        String decodedSvgString = new String(decodedByteArray);
+        Sharp sharp = Sharp.loadString(decodedSvgString);
+        Drawable drawable = sharp.getDrawable();
+        return drawableToBitmap(drawable, maxWidth);
+    }
+
     private static Bitmap drawableToBitmap(Drawable drawable, int maxWidth)
     {
         if (drawable instanceof BitmapDrawable){
             return ((BitmapDrawable)drawable).getBitmap();
         }
         else {
-            int height = (int)((float)maxWidth * ((float)drawable.getIntrinsicHeight() / (float)drawable.getIntrinsicWidth()));
-
-            Bitmap bitmap;
-            try {
-                // this can cause OutOfMemoryError
-                bitmap = Bitmap.createBitmap(maxWidth, height, Bitmap.Config.ARGB_8888);
-            } catch (OutOfMemoryError exception){
-                bitmap = Bitmap.createBitmap(0, 0, Bitmap.Config.ARGB_8888);
-            }
+            int width = maxWidth > 0 ? maxWidth : Math.max(1, drawable.getIntrinsicWidth());
+            int height = drawable.getIntrinsicWidth() > 0 && drawable.getIntrinsicHeight() > 0
+                    ? Math.max(1, (int)((float)width * ((float)drawable.getIntrinsicHeight() / (float)drawable.getIntrinsicWidth())))
+                    : width;
+
+            // can throw OutOfMemoryError, handled by the caller
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
             Canvas canvas = new Canvas(bitmap);
             drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
             drawable.draw(canvas);
             return bitmap;
         }
     }
+
+    private Bitmap readFromDisk(String key)
+    {
+        File file = new File(diskCacheDir, key + ".png");
+        if (!file.isFile()) return null;
+
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+        if (bitmap != null) file.setLastModified(System.currentTimeMillis()); // least recently used is trimmed first
+        return bitmap;
+    }
+
+    // compressed in the background, the bitmap doesn't change once decoded
+    private void writeToDisk(String key, Bitmap bitmap)
+    {
+        try {
+            diskExecutor.execute(() -> {
+                if (!diskCacheDir.isDirectory() && !diskCacheDir.mkdirs()) return;
+                File file = new File(diskCacheDir, key + ".png");
+                File tempFile = new File(diskCacheDir, key + ".tmp");
+                try (OutputStream out = new FileOutputStream(tempFile)) {
+                    bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+                } catch (IOException e) {
+                    Log.e(LOGTAG, "write failed: " + e.getMessage());
+                    tempFile.delete();
+                    return;
+                }
+                if (!tempFile.renameTo(file)) tempFile.delete();
+                trimDiskCache();
+            });
+        } catch (RejectedExecutionException e) {
+            // closed, the image just isn't kept on disk
+        }
+    }
+
+    private void trimDiskCache()
+    {
+        File[] files = diskCacheDir.listFiles();
+        if (files == null) return;
+
+        long size = 0;
+        for (File file : files) size += file.length();
+        if (size <= MAX_DISK_CACHE_BYTES) return;
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (int x = 0; x < files.length && size > MAX_DISK_CACHE_BYTES; x++) {
+            long length = files[x].length();
+            if (files[x].delete()) size -= length;
+        }
+    }
 }
@@ -39,6 +39,7 @@ public class ViewHolderBot extends RecyclerView.ViewHolder {
         if (message == null || message.isEmpty()) {
             botMessage.setVisibility(View.GONE);
         } else {
+            botMessage.setVisibility(View.VISIBLE);
             textMessage.setText(botConnectorActivity.getText());
             if (botBubbleCol != null) botMessage.setCardBackgroundColor(botBubbleCol);
             if (botTextCol != null) textMessage.setTextColor(botTextCol);
@@ -0,0 +1,27 @@
+package com.microsoft.bot.builder.solutions.virtualassistant.activities.main.chatlist;
+
+import android.support.annotation.NonNull;
+import android.view.View;
+import android.widget.RelativeLayout;
+
+import com.microsoft.bot.builder.solutions.virtualassistant.R;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bot message with cards. The rendered card views stay in the container while the holder is
+ * recycled, so rebinding the same cards costs nothing.
+ */
+public class ViewHolderBotCards extends ViewHolderBot {
+
+    // STATE
+    final RelativeLayout cardsContainer;
+    final List<String> cardKeys = new ArrayList<>(); // content hash of each view in cardsContainer
+
+    public ViewHolderBotCards(@NonNull View itemView) {
+        super(itemView);
+        cardsContainer = itemView.findViewById(R.id.cards_container);
+        itemView.findViewById(R.id.bot_cards).setVisibility(View.VISIBLE); // bot cards is hidden by default
+    }
+}
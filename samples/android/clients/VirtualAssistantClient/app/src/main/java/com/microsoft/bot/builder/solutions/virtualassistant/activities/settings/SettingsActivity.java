@@ -27,10 +27,6 @@ import com.microsoft.bot.builder.solutions.virtualassistant.utils.AppConfigurati
 import com.skydoves.colorpickerview.ColorPickerDialog;
 import com.skydoves.colorpickerview.listeners.ColorEnvelopeListener;
 
-import org.greenrobot.eventbus.EventBus;
-import org.greenrobot.eventbus.Subscribe;
-import org.greenrobot.eventbus.ThreadMode;
-
 import java.io.IOException;
 import java.util.TimeZone;
 
@@ -40,6 +36,7 @@ import butterknife.OnCheckedChanged;
 import butterknife.OnClick;
 import butterknife.OnEditorAction;
 import butterknife.OnTextChanged;
+import events.EventDispatcher;
 import events.GpsLocationSent;
 
 /**
@@ -92,7 +89,7 @@ public class SettingsActivity extends BaseActivity {
         super.onCreate(savedInstanceState);
         setContentView(CONTENT_VIEW);
         ButterKnife.bind(this);
-        EventBus.getDefault().register(this);
+        EventDispatcher.getDefault().register(this, GpsLocationSent.class, EventDispatcher.ThreadMode.MAIN, this::onEventGpsLocationSent);
         gson = new Gson();
         initTimezoneAdapter();
 
@@ -125,7 +122,7 @@ public class SettingsActivity extends BaseActivity {
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        EventBus.getDefault().unregister(this);
+        EventDispatcher.getDefault().unregister(this);
     }
 
     @Override
@@ -292,8 +289,7 @@ public class SettingsActivity extends BaseActivity {
         finish();
     }
 
-    // EventBus: the GPS location was sent
-    @Subscribe(threadMode = ThreadMode.MAIN)
+    // Event: the GPS location was sent
     public void onEventGpsLocationSent(GpsLocationSent event) {
         showGpsLocationSentDate();
     }
@@ -10,7 +10,6 @@ import android.content.ActivityNotFoundException;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.res.AssetManager;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
@@ -35,29 +34,27 @@ import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 import com.microsoft.appcenter.analytics.Analytics;
 import com.microsoft.bot.builder.solutions.directlinespeech.ConfigurationManager;
+import com.microsoft.bot.builder.solutions.directlinespeech.KeywordModelManager;
 import com.microsoft.bot.builder.solutions.directlinespeech.SpeechSdk;
 import com.microsoft.bot.builder.solutions.directlinespeech.model.Configuration;
 import com.microsoft.bot.builder.solutions.virtualassistant.ISpeechService;
 import com.microsoft.bot.builder.solutions.virtualassistant.R;
 import com.microsoft.bot.builder.solutions.virtualassistant.activities.main.SfxManager;
 import com.microsoft.bot.builder.solutions.virtualassistant.models.OpenDefaultApp;
+import com.microsoft.bot.builder.solutions.virtualassistant.transcript.TranscriptRecorder;
 import com.microsoft.bot.builder.solutions.virtualassistant.utils.PlayStoreUtils;
 import com.microsoft.bot.builder.solutions.virtualassistant.widgets.WidgetBotRequest;
 import com.microsoft.bot.builder.solutions.virtualassistant.widgets.WidgetBotResponse;
 
-import org.greenrobot.eventbus.EventBus;
-import org.greenrobot.eventbus.Subscribe;
-import org.greenrobot.eventbus.ThreadMode;
-
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.Map;
 
 import client.model.ActivityValue;
 import client.model.BotConnectorActivity;
 import client.model.InputHints;
 import events.ActivityReceived;
+import events.EventDispatcher;
 import events.Recognized;
 import events.RecognizedIntermediateResult;
 import events.RequestTimeout;
@@ -83,6 +80,8 @@ public class SpeechService extends Service {
     private ISpeechService.Stub binder;
     private SpeechSdk speechSdk;
     private ConfigurationManager configurationManager;
+    private KeywordModelManager keywordModelManager;
+    private TranscriptRecorder transcriptRecorder;
     private LocationProvider locationProvider;
     private Gson gson;
     private boolean shouldListenAgain;
@@ -100,7 +99,10 @@ public class SpeechService extends Service {
 
             @Override
             public void sendTextMessage(String msg) {
-                if (speechSdk != null) speechSdk.sendActivityMessageAsync(msg);
+                if (speechSdk != null) {
+                    speechSdk.sendActivityMessageAsync(msg);
+                    transcriptRecorder.recordUserRequest(msg);
+                }
             }
 
             /**
@@ -160,6 +162,7 @@ public class SpeechService extends Service {
             public void sendActivityMessageAsync(String msg){
                 if (speechSdk != null) {
                     speechSdk.sendActivityMessageAsync(msg);
+                    transcriptRecorder.recordUserRequest(msg);
                     Analytics.trackEvent("Activity sent");
                     previousRequestWasTyped = true;
                 }
@@ -182,10 +185,8 @@ public class SpeechService extends Service {
             @Override
             public void startKeywordListeningAsync(String keyword) {
                 if (speechSdk != null) {
-                    AssetManager am = getAssets();
                     try {
-                        InputStream is = am.open("keywords/" + keyword + "/kws.table");
-                        speechSdk.startKeywordListeningAsync(is, keyword);
+                        speechSdk.startKeywordListeningAsync(keywordModelManager.getModel(keyword));
                     } catch (Exception e) {
                         e.printStackTrace();
                     }
@@ -206,7 +207,8 @@ public class SpeechService extends Service {
             @Override
             public void stopAnyTTS() {
                 if(speechSdk != null && speechSdk.getSynthesizer().isPlaying()){
-                    speechSdk.getSynthesizer().stopSound();
+                    long droppedMs = speechSdk.getSynthesizer().cancel();
+                    Log.i(TAG_FOREGROUND_SERVICE, "TTS cancelled, dropped " + droppedMs + "ms");
                 }
             }
 
@@ -230,6 +232,12 @@ public class SpeechService extends Service {
                     Toast.makeText(getApplicationContext(), "Location is unknown", Toast.LENGTH_LONG).show();
                 }
             }
+
+            @Override
+            public String getLatencyStats() {
+                if (speechSdk != null) return speechSdk.getLatencyStats();
+                return null;
+            }
         };
     }
 
@@ -249,10 +257,17 @@ public class SpeechService extends Service {
     public void onCreate() {
         super.onCreate();
         Log.d(TAG_FOREGROUND_SERVICE, "onCreate()");
-        EventBus.getDefault().register(this);
+        EventDispatcher dispatcher = EventDispatcher.getDefault();
+        dispatcher.register(this, SynthesizerStopped.class, EventDispatcher.ThreadMode.MAIN, this::onEventSynthesizerStopped);
+        dispatcher.register(this, RequestTimeout.class, EventDispatcher.ThreadMode.MAIN, this::onEventRequestTimeout);
+        dispatcher.register(this, RecognizedIntermediateResult.class, EventDispatcher.ThreadMode.MAIN, this::onEventRecognizedIntermediateResult);
+        dispatcher.register(this, Recognized.class, EventDispatcher.ThreadMode.MAIN, this::onEventRecognized);
+        dispatcher.register(this, ActivityReceived.class, EventDispatcher.ThreadMode.MAIN, this::onEventActivityReceived);
         gson = new Gson();
+        transcriptRecorder = TranscriptRecorder.getInstance(this);
 
         configurationManager = new ConfigurationManager(this);
+        keywordModelManager = new KeywordModelManager(getAssets());
 
         locationProvider = new LocationProvider(this, location -> {
             final String locLat = String.valueOf(location.getLatitude());
@@ -270,8 +285,14 @@ public class SpeechService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        EventBus.getDefault().unregister(this);
+        EventDispatcher.getDefault().unregister(this);
         stopListening();
+        if (speechSdk != null) {
+            // the connector may use the keyword model until it's disconnected
+            speechSdk.close().whenComplete((result, error) -> keywordModelManager.close());
+        } else {
+            keywordModelManager.close();
+        }
     }
 
     @Override
@@ -381,12 +402,13 @@ public class SpeechService extends Service {
             Log.d(TAG_FOREGROUND_SERVICE, "resetting SpeechSDK");
             shouldListenAgain = false;
             previousRequestWasTyped = false;
-            speechSdk.disconnectAsync();
+            // releases the microphone for the new instance
+            speechSdk.close();
         }
         speechSdk = new SpeechSdk();
         File directory = getExternalFilesDir(null);
         Configuration configuration = configurationManager.getConfiguration();
-        speechSdk.initialize(configuration, haveRecordAudioPermission, directory.getPath());
+        speechSdk.initialize(configuration, haveRecordAudioPermission, directory.getPath(), getFilesDir().getPath());
         if (configuration.enableKWS) {
             try {
                 binder.startKeywordListeningAsync(configuration.keyword);
@@ -416,8 +438,7 @@ public class SpeechService extends Service {
         }
     }
 
-    // EventBus: the synthesizer has stopped playing
-    @Subscribe(threadMode = ThreadMode.MAIN)
+    // Event: the synthesizer has stopped playing
     public void onEventSynthesizerStopped(SynthesizerStopped event) {
         if (previousRequestWasTyped){
             previousRequestWasTyped = false;
@@ -432,28 +453,25 @@ public class SpeechService extends Service {
 
     }
 
-    // EventBus: the previous request timed out
-    @Subscribe(threadMode = ThreadMode.MAIN)
+    // Event: the previous request timed out
     public void onEventRequestTimeout(RequestTimeout event) {
         broadcastTimeout(event);
         stopListening();
     }
 
-    // EventBus: the user spoke and the app recognized intermediate speech
-    @Subscribe(threadMode = ThreadMode.MAIN)
+    // Event: the user spoke and the app recognized intermediate speech
     public void onEventRecognizedIntermediateResult(RecognizedIntermediateResult event) {
         updateBotRequestWidget(event.recognized_speech);
     }
 
-    // EventBus: the user spoke and the app recognized the speech. Disconnect mic.
-    @Subscribe(threadMode = ThreadMode.MAIN)
+    // Event: the user spoke and the app recognized the speech. Disconnect mic.
     public void onEventRecognized(Recognized event) {
         updateBotRequestWidget(event.recognized_speech);
+        if (event.recognized_speech.length() > 0) transcriptRecorder.recordUserRequest(event.recognized_speech);
         stopListening();
     }
 
-    // EventBus: received a response from Bot
-    @Subscribe(threadMode = ThreadMode.MAIN)
+    // Event: received a response from Bot
     public void onEventActivityReceived(ActivityReceived activityReceived) throws IOException {
         if (activityReceived.botConnectorActivity != null) {
             BotConnectorActivity botConnectorActivity = activityReceived.botConnectorActivity;
@@ -463,6 +481,8 @@ public class SpeechService extends Service {
                 case "message":
                     // update Response widget
                     updateBotResponseWidget(botConnectorActivity.getText());
+                    // record to the chat, also while the UI is stopped
+                    transcriptRecorder.recordBotActivity(botConnectorActivity);
                     // update client apps
                     broadcastActivity(botConnectorActivity);
                     break;
@@ -582,7 +602,7 @@ public class SpeechService extends Service {
     }
 
     private void broadcastActivity(BotConnectorActivity botConnectorActivity){
-        final String json = gson.toJson(botConnectorActivity);
+        final String json = toJson(botConnectorActivity);
         final Intent intent=new Intent();
         intent.setAction("com.microsoft.broadcast");
         intent.putExtra("BotConnectorActivity",json);
@@ -598,13 +618,19 @@ public class SpeechService extends Service {
     }
 
     private void broadcastWidgetUpdate(BotConnectorActivity botConnectorActivity){
-        final String json = gson.toJson(botConnectorActivity);
+        final String json = toJson(botConnectorActivity);
         final Intent intent=new Intent();
         intent.setAction("com.microsoft.broadcast");
         intent.putExtra("WidgetUpdate",json);
         sendBroadcast(intent);
     }
 
+    // reuse the JSON as received from the bot, it also holds the members that are not decoded yet
+    private String toJson(BotConnectorActivity botConnectorActivity){
+        if (botConnectorActivity.getActivityJson() != null) return botConnectorActivity.getActivityJson();
+        return gson.toJson(botConnectorActivity);
+    }
+
     private void updateBotResponseWidget(String text){
         Log.v(TAG_FOREGROUND_SERVICE, "updateBotResponseWidget("+text+")");
         Context context = this;
@@ -630,8 +656,7 @@ public class SpeechService extends Service {
         if (speechSdk == null) {
             initializeSpeechSdk(true); // assume true - for this to work the app must have been launched once for permission dialog
         }
-        speechSdk.connectAsync();
-        speechSdk.listenOnceAsync();
+        speechSdk.listenOnceAsync(); // connects first if needed
         if (animationView == null) {
             initializeAnimation(); // initialize listening animation view
         }
@@ -0,0 +1,363 @@
+package com.microsoft.bot.builder.solutions.virtualassistant.transcript;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.microsoft.bot.builder.solutions.directlinespeech.ActivityJsonReader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import client.model.BotConnectorActivity;
+
+/**
+ * Full-text index of the transcript: bot text and speak, and user requests.
+ * An inverted index from term to the sequence numbers of the transcript records containing it,
+ * the terms are sorted so a prefix query is a range of them.
+ * It is updated a record at a time on a background thread, and persisted as an append-only log
+ * with an entry per record: the terms seen for the first time, then the ids of the record's terms,
+ * all as varints, after a header with the sequence number of the first record. It is loaded back
+ * on open, records of the transcript missing from it (i.e. after a crash, the log isn't forced to
+ * disk) are indexed again from the transcript. When the transcript drops its first records
+ * (compacted or purged) the index is rebuilt from the records left.
+ */
+public class SearchIndex {
+
+    // CONSTANTS
+    private static final String LOGTAG = "SearchIndex";
+    private static final String INDEX_FILE = "search.idx";
+    private static final int MAX_TERM_LENGTH = 32; // longer terms are truncated
+    private static final int CATCH_UP_CHUNK = 64; // transcript records read at a time when catching up
+    private static final int FILE_HEADER_SIZE = 8; // sequence number of the first record
+
+    // STATE
+    private static SearchIndex instance;
+    private final TranscriptStore transcriptStore;
+    private final FileChannel file;
+    private long fileLength;
+    private final TreeMap<String, Postings> terms = new TreeMap<>(); // guarded by this
+    private final List<String> termsById = new ArrayList<>(); // guarded by this
+    private long baseSequence; // guarded by this, of the first record indexed, postings are relative to it
+    private long indexedCount; // guarded by this, records before are indexed
+    private boolean loaded; // guarded by this
+    private final ActivityJsonReader activityJsonReader = new ActivityJsonReader(new Gson());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, LOGTAG);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY - 1);
+        return thread;
+    });
+
+    // sequence numbers of the records containing a term relative to baseSequence, ascending
+    private static class Postings {
+        final int id;
+        int[] sequences = new int[2];
+        int size;
+
+        Postings(int id) {
+            this.id = id;
+        }
+
+        void add(int sequence) {
+            if (size == sequences.length) sequences = Arrays.copyOf(sequences, size * 2);
+            sequences[size++] = sequence;
+        }
+    }
+
+    public static synchronized SearchIndex getInstance(Context context) throws IOException {
+        if (instance == null) instance = new SearchIndex(new File(context.getFilesDir(), TranscriptStore.DIRECTORY), TranscriptStore.getInstance(context));
+        return instance;
+    }
+
+    SearchIndex(File dir, TranscriptStore transcriptStore) throws IOException {
+        this.transcriptStore = transcriptStore;
+        file = new RandomAccessFile(new File(dir, INDEX_FILE), "rw").getChannel();
+        executor.execute(() -> {
+            synchronized (this) {
+                load();
+                loaded = true;
+                notifyAll();
+                catchUp(transcriptStore.getCount());
+            }
+        });
+    }
+
+    /**
+     * @return the text a bot response is found by
+     */
+    public static String getText(BotConnectorActivity botConnectorActivity) {
+        String text = botConnectorActivity.getText();
+        String speak = botConnectorActivity.getSpeak();
+        if (speak != null) speak = speak.replaceAll("<[^>]*>", " ").trim(); // SSML markup
+        if (speak == null || speak.isEmpty() || speak.equals(text)) return text;
+        return text == null ? speak : text + "\n" + speak;
+    }
+
+    /**
+     * Index a record appended to the transcript, can be called on any thread
+     * @param sequence of the record in the transcript
+     * @param text bot text and speak, or the user request
+     */
+    public void add(long sequence, String text) {
+        executor.execute(() -> {
+            synchronized (this) {
+                checkBase();
+                catchUp(sequence);
+                if (sequence == indexedCount) index(sequence, text);
+            }
+        });
+    }
+
+    /**
+     * Find records containing all the terms of the query, the last term also matches as a prefix
+     * unless the query ends with a separator (i.e. a space).
+     * Blocks while the index is loaded on open.
+     * @param limit maximum number of results
+     * @return sequence numbers of the matching records, most recent first
+     */
+    public synchronized List<Long> search(String query, int limit) throws InterruptedException {
+        while (!loaded) wait();
+
+        List<Long> results = new ArrayList<>();
+        long firstSequence = transcriptStore.getFirstSequence(); // the records before are deleted, the index may not know yet
+        List<String> queryTerms = new ArrayList<>(tokenize(query));
+        if (queryTerms.isEmpty()) return results;
+        boolean prefix = Character.isLetterOrDigit(query.charAt(query.length() - 1));
+
+        BitSet matches = null;
+        for (int x = 0; x < queryTerms.size(); x++) {
+            String term = queryTerms.get(x);
+            BitSet termMatches = new BitSet();
+            if (prefix && x == queryTerms.size() - 1) {
+                for (Postings postings : terms.subMap(term, true, term + Character.MAX_VALUE, true).values()) {
+                    for (int y = 0; y < postings.size; y++) termMatches.set(postings.sequences[y]);
+                }
+            } else {
+                Postings postings = terms.get(term);
+                if (postings == null) return results;
+                for (int y = 0; y < postings.size; y++) termMatches.set(postings.sequences[y]);
+            }
+
+            if (matches == null) matches = termMatches;
+            else matches.and(termMatches);
+            if (matches.isEmpty()) return results;
+        }
+
+        for (int x = matches.length() - 1; x >= 0 && results.size() < limit; x = matches.previousSetBit(x - 1)) {
+            long sequence = baseSequence + x;
+            if (sequence < firstSequence) break;
+            results.add(sequence);
+        }
+        return results;
+    }
+
+    // lower case terms without accents, in order of appearance
+    static Set<String> tokenize(String text) {
+        Set<String> tokens = new LinkedHashSet<>();
+        if (text == null) return tokens;
+
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD).replaceAll("\\p{M}", "").toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int x = 0; x <= normalized.length(); x++) {
+            boolean isTermChar = x < normalized.length() && Character.isLetterOrDigit(normalized.charAt(x));
+            if (isTermChar && start < 0) {
+                start = x;
+            } else if (!isTermChar && start >= 0) {
+                tokens.add(normalized.substring(start, Math.min(x, start + MAX_TERM_LENGTH)));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    // start over if the transcript dropped records the index has
+    private void checkBase() {
+        long firstSequence = transcriptStore.getFirstSequence();
+        if (firstSequence > baseSequence) reset(firstSequence);
+    }
+
+    private void reset(long firstSequence) {
+        terms.clear();
+        termsById.clear();
+        baseSequence = firstSequence;
+        indexedCount = firstSequence;
+        try {
+            file.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            header.putLong(0, firstSequence);
+            while (header.hasRemaining()) file.write(header, header.position());
+        } catch (IOException e) {
+            Log.e(LOGTAG, "reset failed: " + e.getMessage());
+        }
+        fileLength = FILE_HEADER_SIZE;
+    }
+
+    // index the transcript records before sequence that aren't yet
+    private void catchUp(long sequence) {
+        try {
+            while (indexedCount < sequence) {
+                List<TranscriptStore.Record> records = transcriptStore.read(indexedCount, (int) Math.min(CATCH_UP_CHUNK, sequence - indexedCount));
+                if (records.isEmpty()) break;
+                for (TranscriptStore.Record record : records) {
+                    // purged meanwhile, checkBase() starts over
+                    if (record.sequence != indexedCount) return;
+                    index(record.sequence, getText(record));
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOGTAG, "catch up failed: " + e.getMessage());
+        }
+    }
+
+    private String getText(TranscriptStore.Record record) {
+        if (record.type == TranscriptStore.TYPE_USER) return record.payload;
+        BotConnectorActivity botConnectorActivity = activityJsonReader.read(record.payload);
+        return botConnectorActivity == null ? null : getText(botConnectorActivity);
+    }
+
+    private void index(long sequence, String text) {
+        List<String> newTerms = new ArrayList<>();
+        int[] termIds = new int[0];
+        int count = 0;
+        for (String term : tokenize(text)) {
+            Postings postings = terms.get(term);
+            if (postings == null) {
+                postings = new Postings(termsById.size());
+                terms.put(term, postings);
+                termsById.add(term);
+                newTerms.add(term);
+            }
+            postings.add((int) (sequence - baseSequence));
+            if (count == termIds.length) termIds = Arrays.copyOf(termIds, Math.max(8, count * 2));
+            termIds[count++] = postings.id;
+        }
+        indexedCount = sequence + 1;
+
+        // entry: length, new terms, term ids as deltas. Records are indexed in order, so the entry's is implied
+        ByteArrayOutputStream entry = new ByteArrayOutputStream();
+        writeVarint(entry, newTerms.size());
+        for (String term : newTerms) {
+            byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+            writeVarint(entry, bytes.length);
+            entry.write(bytes, 0, bytes.length);
+        }
+        Arrays.sort(termIds, 0, count);
+        writeVarint(entry, count);
+        for (int x = 0; x < count; x++) writeVarint(entry, x == 0 ? termIds[0] : termIds[x] - termIds[x - 1]);
+
+        try {
+            ByteArrayOutputStream framed = new ByteArrayOutputStream(entry.size() + 5);
+            writeVarint(framed, entry.size());
+            entry.writeTo(framed);
+            ByteBuffer buffer = ByteBuffer.wrap(framed.toByteArray());
+            while (buffer.hasRemaining()) file.write(buffer, fileLength + buffer.position());
+            fileLength += buffer.limit();
+        } catch (IOException e) {
+            Log.e(LOGTAG, "write failed: " + e.getMessage());
+        }
+    }
+
+    // replay the log, an incomplete or malformed entry and the rest after it are dropped
+    private void load() {
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.allocate((int) file.size());
+            while (buffer.hasRemaining() && file.read(buffer, buffer.position()) >= 0) ;
+            buffer.flip();
+        } catch (IOException e) {
+            Log.e(LOGTAG, "load failed: " + e.getMessage());
+            reset(transcriptStore.getFirstSequence());
+            return;
+        }
+
+        if (buffer.limit() < FILE_HEADER_SIZE || buffer.getLong() < transcriptStore.getFirstSequence()) {
+            // new, or its first records were deleted from the transcript since
+            reset(transcriptStore.getFirstSequence());
+            return;
+        }
+        baseSequence = buffer.getLong(0);
+        indexedCount = baseSequence;
+
+        long transcriptCount = transcriptStore.getCount();
+        int validLength = FILE_HEADER_SIZE;
+        try {
+            while (buffer.hasRemaining()) {
+                int length = readVarint(buffer);
+                if (length > buffer.remaining()) break;
+                ByteBuffer entry = (ByteBuffer) buffer.slice().limit(length);
+                buffer.position(buffer.position() + length);
+
+                long sequence = indexedCount;
+                if (sequence >= transcriptCount) break; // the transcript lost it, i.e. its tail was truncated
+                int newTermCount = readVarint(entry);
+                for (int x = 0; x < newTermCount; x++) {
+                    byte[] bytes = new byte[readVarint(entry)];
+                    entry.get(bytes);
+                    String term = new String(bytes, StandardCharsets.UTF_8);
+                    if (terms.containsKey(term)) throw new IllegalStateException("duplicate term");
+                    terms.put(term, new Postings(termsById.size()));
+                    termsById.add(term);
+                }
+                int count = readVarint(entry);
+                int termId = 0;
+                for (int x = 0; x < count; x++) {
+                    termId += readVarint(entry);
+                    terms.get(termsById.get(termId)).add((int) (sequence - baseSequence));
+                }
+                indexedCount = sequence + 1;
+                validLength = buffer.position();
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOGTAG, "malformed entry at " + validLength + ": " + e);
+        }
+
+        if (validLength < buffer.limit()) {
+            // drop the terms of the entries not kept, they may have been added by the last one read
+            terms.clear();
+            termsById.clear();
+            try {
+                file.truncate(validLength);
+            } catch (IOException e) {
+                Log.e(LOGTAG, "truncate failed: " + e.getMessage());
+            }
+            load();
+            return;
+        }
+        fileLength = validLength;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalStateException("malformed varint");
+    }
+}
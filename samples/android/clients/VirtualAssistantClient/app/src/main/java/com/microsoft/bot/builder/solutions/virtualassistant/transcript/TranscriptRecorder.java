@@ -0,0 +1,112 @@
+package com.microsoft.bot.builder.solutions.virtualassistant.transcript;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import client.model.BotConnectorActivity;
+
+/**
+ * Records every bot message and user request to the TranscriptStore and the SearchIndex.
+ * Driven by the SpeechService, so the turns handled while the UI is stopped are recorded too.
+ * The store and the index are opened, and appended to, on a background thread.
+ * If they can't be opened the items still get sequence numbers, they're just not kept.
+ *
+ * One instance per process, see getInstance(). Thread safe.
+ */
+public class TranscriptRecorder {
+
+    // CONSTANTS
+    private static final String LOGTAG = "TranscriptRecorder";
+
+    public interface Listener {
+        /**
+         * Called on the recorder's thread once the transcript is opened, before any onRecorded()
+         * @param transcriptStore null if it couldn't be opened
+         * @param searchIndex null if the transcript couldn't be opened
+         * @param nextSequence sequence number of the next item recorded
+         */
+        void onOpened(TranscriptStore transcriptStore, SearchIndex searchIndex, long nextSequence);
+
+        /**
+         * Called on the recorder's thread, in recording order
+         * @param botConnectorActivity null for a user request
+         * @param request null for a bot message
+         */
+        void onRecorded(long sequence, BotConnectorActivity botConnectorActivity, String request);
+    }
+
+    // STATE
+    private static TranscriptRecorder instance;
+    private final Context context;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> new Thread(runnable, LOGTAG));
+    // only used on the executor
+    private TranscriptStore transcriptStore;
+    private SearchIndex searchIndex;
+    private long nextSequence; // used if the transcript couldn't be opened
+    private String conversationId; // of the last bot message, recorded with the user requests
+
+    public static synchronized TranscriptRecorder getInstance(Context context) {
+        if (instance == null) instance = new TranscriptRecorder(context.getApplicationContext());
+        return instance;
+    }
+
+    private TranscriptRecorder(Context context) {
+        this.context = context;
+        executor.execute(this::open);
+    }
+
+    /**
+     * @param listener gets onOpened() first, then the items recorded from then on
+     */
+    public void addListener(Listener listener) {
+        executor.execute(() -> {
+            listener.onOpened(transcriptStore, searchIndex, transcriptStore != null ? transcriptStore.getCount() : nextSequence);
+            listeners.add(listener);
+        });
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public void recordBotActivity(BotConnectorActivity botConnectorActivity) {
+        executor.execute(() -> {
+            if (botConnectorActivity.getConversation() != null) conversationId = botConnectorActivity.getConversation().getId();
+            long sequence = nextSequence++;
+            if (transcriptStore != null) {
+                sequence = transcriptStore.appendBotActivity(botConnectorActivity);
+                searchIndex.add(sequence, SearchIndex.getText(botConnectorActivity));
+            }
+            for (Listener listener : listeners) listener.onRecorded(sequence, botConnectorActivity, null);
+        });
+    }
+
+    public void recordUserRequest(String request) {
+        executor.execute(() -> {
+            long sequence = nextSequence++;
+            if (transcriptStore != null) {
+                sequence = transcriptStore.appendUserRequest(conversationId, request);
+                searchIndex.add(sequence, request);
+            }
+            for (Listener listener : listeners) listener.onRecorded(sequence, null, request);
+        });
+    }
+
+    // runs on the executor, recover() can rescan the whole data file
+    private void open() {
+        try {
+            transcriptStore = TranscriptStore.getInstance(context);
+            searchIndex = SearchIndex.getInstance(context);
+        } catch (IOException e) {
+            Log.e(LOGTAG, "unable to open the transcript: " + e.getMessage());
+            transcriptStore = null;
+        }
+    }
+}
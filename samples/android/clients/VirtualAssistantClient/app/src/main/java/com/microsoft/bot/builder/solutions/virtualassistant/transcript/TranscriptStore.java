@@ -0,0 +1,600 @@
+package com.microsoft.bot.builder.solutions.virtualassistant.transcript;
+
+import android.content.Context;
+import android.os.Process;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import client.model.BotConnectorActivity;
+
+/**
+ * Persistent transcript of the conversations: an append-only log of the bot activities and user
+ * requests, so the chat history survives restarts.
+ *
+ * Each record is length-prefixed: length, time, type, conversation id, then the activity JSON
+ * as received (or the user request). A small index file holds a fixed size entry per record:
+ * its offset, time and conversation id hash, so reading a record by sequence number is one
+ * index read, and range reads by time are a binary search over the index.
+ * Both files start with the sequence number of their first record. Records over the size or age
+ * limit, or purged, are dropped by rewriting both files from the first record kept, so the
+ * sequence numbers of the others don't change.
+ *
+ * append() only queues the record and assigns its sequence number. A background writer commits
+ * the queued records in groups: one write to each file and one sync per group, so a burst of
+ * activities costs a single sync. A failed commit is rolled back and retried, records are
+ * readable only once they are on disk. On open, records after the last complete one (i.e. a
+ * crash while committing) are re-indexed or truncated.
+ *
+ * One instance per process, see getInstance(). Thread safe.
+ */
+public class TranscriptStore {
+
+    // CONSTANTS
+    private static final String LOGTAG = "TranscriptStore";
+    static final String DIRECTORY = "transcript";
+    private static final String DATA_FILE = "transcript.log";
+    private static final String INDEX_FILE = "transcript.idx";
+    private static final int INDEX_ENTRY_SIZE = 8 + 8 + 4; // offset, time, conversation id hash
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 1 + 2; // length, time, type, conversation id length
+    private static final int MIN_RECORD_LENGTH = RECORD_HEADER_SIZE - 4; // excluding the length itself
+    private static final long COMMIT_DELAY_MS = 20; // lets the activities of a turn join the same commit
+    private static final long MAX_RETRY_DELAY_MS = 30000; // between attempts when commits fail, i.e. storage full
+    private static final int FILE_HEADER_SIZE = 8; // sequence number of the first record
+    private static final String TEMP_SUFFIX = ".tmp"; // files being compacted
+    private static final long MAX_DATA_SIZE_BYTES = 16 * 1024 * 1024; // compacted above
+    private static final long COMPACTED_DATA_SIZE_BYTES = MAX_DATA_SIZE_BYTES / 2; // kept when compacting by size
+    private static final long MAX_AGE_MS = 30L * 24 * 60 * 60 * 1000; // older records are dropped
+    private static final int COMPACT_CHUNK = 4096; // index entries copied at a time
+    public static final byte TYPE_BOT = 0;
+    public static final byte TYPE_USER = 1;
+    private static TranscriptStore instance;
+
+    // STATE
+    private final File dataFile;
+    private final File indexFile;
+    private FileChannel data; // replaced when compacting, under the write lock of fileLock
+    private FileChannel index; // same
+    private final ReadWriteLock fileLock = new ReentrantReadWriteLock(); // read locked while reading the files
+    private final Gson gson = new Gson();
+    private final Object lock = new Object();
+    private final List<Record> queue = new ArrayList<>(); // guarded by lock, appended but not committed
+    private long count; // guarded by lock, records appended, i.e. the sequence number of the next one
+    private long committedCount; // guarded by lock, records before are readable
+    private long purgeBefore; // guarded by lock, records before are deleted at the next compaction
+    private long lastTime; // guarded by lock
+    private volatile long firstSequence; // of the first record in the files, changed under the write lock of fileLock
+    private long dataSize; // owned by the writer after open
+
+    public static class Record {
+        public final long sequence;
+        public final long time; // ms since epoch, never before the previous record's
+        public final byte type;
+        public final String conversationId; // null if unknown
+        public final String payload; // activity JSON for TYPE_BOT, the request for TYPE_USER
+
+        Record(long sequence, long time, byte type, String conversationId, String payload) {
+            this.sequence = sequence;
+            this.time = time;
+            this.type = type;
+            this.conversationId = conversationId;
+            this.payload = payload;
+        }
+    }
+
+    public static synchronized TranscriptStore getInstance(Context context) throws IOException {
+        if (instance == null) instance = new TranscriptStore(new File(context.getFilesDir(), DIRECTORY));
+        return instance;
+    }
+
+    TranscriptStore(File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("unable to create " + dir);
+        dataFile = new File(dir, DATA_FILE);
+        indexFile = new File(dir, INDEX_FILE);
+        new File(dir, DATA_FILE + TEMP_SUFFIX).delete(); // left by a crash while compacting
+        new File(dir, INDEX_FILE + TEMP_SUFFIX).delete();
+        data = open(dataFile);
+        index = open(indexFile);
+        count = committedCount = recover();
+        lastTime = count > firstSequence ? readIndexEntry(count - 1).getLong(8) : 0;
+        Log.i(LOGTAG, "opened, records " + firstSequence + " to " + count);
+
+        Thread writer = new Thread(this::runWriter, LOGTAG);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return sequence number of the record
+     */
+    public long appendBotActivity(BotConnectorActivity botConnectorActivity) {
+        String activityJson = botConnectorActivity.getActivityJson() != null ? botConnectorActivity.getActivityJson() : gson.toJson(botConnectorActivity);
+        String conversationId = botConnectorActivity.getConversation() != null ? botConnectorActivity.getConversation().getId() : null;
+        return append(TYPE_BOT, conversationId, activityJson);
+    }
+
+    /**
+     * @param conversationId the conversation the request was sent in, null if unknown
+     * @return sequence number of the record
+     */
+    public long appendUserRequest(String conversationId, String request) {
+        return append(TYPE_USER, conversationId, request);
+    }
+
+    /**
+     * @return number of records, including the ones not committed yet
+     */
+    public long getCount() {
+        synchronized (lock) {
+            return count;
+        }
+    }
+
+    /**
+     * @return sequence number of the first record not deleted, records before can't be read
+     */
+    public long getFirstSequence() {
+        synchronized (lock) {
+            return Math.max(firstSequence, purgeBefore);
+        }
+    }
+
+    /**
+     * Delete the records appended so far, i.e. when the conversation is reset.
+     * They can't be read from now on, and are deleted from disk shortly after. The sequence
+     * numbers of the records appended later continue after theirs.
+     */
+    public void purge() {
+        synchronized (lock) {
+            purgeBefore = count;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until the records appended so far are committed
+     */
+    public void flush() throws InterruptedException {
+        synchronized (lock) {
+            long target = count;
+            while (committedCount < target) lock.wait();
+        }
+    }
+
+    /**
+     * Read records by sequence number, waits for them to be committed
+     * @return the records from sequence on, fewer than count at the end of the transcript
+     */
+    public List<Record> read(long sequence, int count) throws IOException {
+        List<Record> records = new ArrayList<>();
+        long end = Math.min(sequence + count, awaitCommitted(sequence + count));
+        fileLock.readLock().lock();
+        try {
+            for (long s = Math.max(getFirstSequence(), sequence); s < end; s++) {
+                records.add(readRecord(s, readIndexEntry(s)));
+            }
+        } finally {
+            fileLock.readLock().unlock();
+        }
+        return records;
+    }
+
+    /**
+     * Read the records of a time range
+     * @param fromTime inclusive, ms since epoch
+     * @param toTime exclusive
+     * @param conversationId only the records of this conversation, null for all
+     * @param limit maximum number of records
+     */
+    public List<Record> readRange(long fromTime, long toTime, String conversationId, int limit) throws IOException {
+        List<Record> records = new ArrayList<>();
+        fileLock.readLock().lock();
+        try {
+            long committed;
+            synchronized (lock) {
+                committed = committedCount;
+            }
+
+            int conversationHash = conversationId == null ? 0 : conversationId.hashCode();
+            for (long s = findSequence(getFirstSequence(), committed, 8, fromTime); s < committed && records.size() < limit; s++) {
+                ByteBuffer entry = readIndexEntry(s);
+                if (entry.getLong(8) >= toTime) break;
+                if (conversationId != null && entry.getInt(16) != conversationHash) continue;
+                Record record = readRecord(s, entry);
+                if (conversationId == null || conversationId.equals(record.conversationId)) records.add(record);
+            }
+        } finally {
+            fileLock.readLock().unlock();
+        }
+        return records;
+    }
+
+    /**
+     * Export the transcript as it is now, as a Bot Framework transcript (a JSON array of activities).
+     * The user requests are exported as message activities from the user.
+     */
+    public void exportSnapshot(File file) throws IOException, InterruptedException {
+        flush();
+        fileLock.readLock().lock();
+        try {
+            exportRecords(file);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    private void exportRecords(File file) throws IOException {
+        long first = getFirstSequence();
+        long committed;
+        synchronized (lock) {
+            committed = committedCount;
+        }
+
+        SimpleDateFormat iso8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        iso8601.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write("[\n");
+            for (long s = first; s < committed; s++) {
+                Record record = readRecord(s, readIndexEntry(s));
+                if (s > first) writer.write(",\n");
+                if (record.type == TYPE_BOT) {
+                    writer.write(record.payload);
+                    continue;
+                }
+
+                JsonObject activity = new JsonObject();
+                activity.addProperty("type", "message");
+                activity.addProperty("text", record.payload);
+                activity.addProperty("timestamp", iso8601.format(new Date(record.time)));
+                JsonObject from = new JsonObject();
+                from.addProperty("role", "user");
+                activity.add("from", from);
+                if (record.conversationId != null) {
+                    JsonObject conversation = new JsonObject();
+                    conversation.addProperty("id", record.conversationId);
+                    activity.add("conversation", conversation);
+                }
+                JsonWriter jsonWriter = new JsonWriter(writer);
+                gson.toJson(activity, jsonWriter);
+                jsonWriter.flush();
+            }
+            writer.write("\n]\n");
+        }
+    }
+
+    private long append(byte type, String conversationId, String payload) {
+        synchronized (lock) {
+            lastTime = Math.max(lastTime, System.currentTimeMillis());
+            Record record = new Record(count++, lastTime, type, conversationId, payload);
+            queue.add(record);
+            lock.notifyAll();
+            return record.sequence;
+        }
+    }
+
+    // waits until the records before end are committed, returns the committed count
+    private long awaitCommitted(long end) {
+        synchronized (lock) {
+            try {
+                while (committedCount < Math.min(end, count)) lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return committedCount;
+        }
+    }
+
+    private void runWriter() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        List<Record> batch = new ArrayList<>(); // in sequence order, the failed ones first
+        long retryDelay = 0;
+        try {
+            while (true) {
+                synchronized (lock) {
+                    while (queue.isEmpty() && batch.isEmpty() && purgeBefore <= firstSequence) lock.wait();
+                }
+                Thread.sleep(retryDelay > 0 ? retryDelay : COMMIT_DELAY_MS);
+                synchronized (lock) {
+                    batch.addAll(queue);
+                    queue.clear();
+                }
+
+                try {
+                    if (!batch.isEmpty()) {
+                        try {
+                            commit(batch);
+                        } catch (IOException e) {
+                            rollback();
+                            throw e;
+                        }
+                        synchronized (lock) {
+                            committedCount += batch.size();
+                            lock.notifyAll();
+                        }
+                        batch.clear();
+                    }
+                    compactIfNeeded();
+                    retryDelay = 0;
+                } catch (IOException e) {
+                    Log.e(LOGTAG, "write failed, retrying: " + e.getMessage());
+                    retryDelay = Math.min(MAX_RETRY_DELAY_MS, Math.max(COMMIT_DELAY_MS, retryDelay * 2));
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.e(LOGTAG, "writer interrupted");
+        }
+    }
+
+    private void commit(List<Record> batch) throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream recordsOut = new DataOutputStream(records);
+        ByteBuffer entries = ByteBuffer.allocate(batch.size() * INDEX_ENTRY_SIZE);
+        for (Record record : batch) {
+            byte[] conversationId = record.conversationId == null ? new byte[0] : record.conversationId.getBytes(StandardCharsets.UTF_8);
+            byte[] payload = record.payload == null ? new byte[0] : record.payload.getBytes(StandardCharsets.UTF_8);
+
+            entries.putLong(dataSize + records.size());
+            entries.putLong(record.time);
+            entries.putInt(record.conversationId == null ? 0 : record.conversationId.hashCode());
+
+            recordsOut.writeInt(MIN_RECORD_LENGTH + conversationId.length + payload.length);
+            recordsOut.writeLong(record.time);
+            recordsOut.writeByte(record.type);
+            recordsOut.writeShort(conversationId.length);
+            recordsOut.write(conversationId);
+            recordsOut.write(payload);
+        }
+        entries.flip();
+
+        // the index entries point at complete records only, recover() relies on it
+        writeFully(data, ByteBuffer.wrap(records.toByteArray()), dataSize);
+        data.force(false);
+        writeFully(index, entries, getIndexPosition(batch.get(0).sequence));
+        index.force(false);
+        dataSize += records.size();
+    }
+
+    // drops what a failed commit may have written, so the next one starts at the last good sizes
+    private void rollback() {
+        long committed;
+        synchronized (lock) {
+            committed = committedCount;
+        }
+        try {
+            data.truncate(dataSize);
+            index.truncate(getIndexPosition(committed));
+        } catch (IOException e) {
+            // the retry overwrites the same positions, recover() truncates the rest on open
+            Log.e(LOGTAG, "rollback failed: " + e.getMessage());
+        }
+    }
+
+    // drops the records purged, older than MAX_AGE_MS, or over MAX_DATA_SIZE_BYTES
+    private void compactIfNeeded() throws IOException {
+        long committed;
+        long sequence;
+        synchronized (lock) {
+            committed = committedCount;
+            sequence = Math.min(purgeBefore, committed);
+        }
+        if (committed == firstSequence) return;
+
+        if (dataSize > MAX_DATA_SIZE_BYTES) {
+            sequence = Math.max(sequence, findSequence(firstSequence, committed, 0, dataSize - COMPACTED_DATA_SIZE_BYTES));
+        }
+        long oldestTime = System.currentTimeMillis() - MAX_AGE_MS;
+        if (readIndexEntry(firstSequence).getLong(8) < oldestTime) {
+            sequence = Math.max(sequence, findSequence(firstSequence, committed, 8, oldestTime));
+        }
+        if (sequence > firstSequence) compact(sequence, committed);
+    }
+
+    // rewrites the files without the records before sequence, readers wait only while they are swapped
+    private void compact(long sequence, long committed) throws IOException {
+        long start = sequence < committed ? readIndexEntry(sequence).getLong(0) : dataSize;
+        long shift = start - FILE_HEADER_SIZE;
+        File dataTemp = new File(dataFile.getPath() + TEMP_SUFFIX);
+        File indexTemp = new File(indexFile.getPath() + TEMP_SUFFIX);
+        try (FileChannel newData = open(dataTemp); FileChannel newIndex = open(indexTemp)) {
+            newData.truncate(0);
+            writeHeader(newData, sequence);
+            newData.position(FILE_HEADER_SIZE);
+            for (long position = start; position < dataSize; ) {
+                long size = data.transferTo(position, dataSize - position, newData);
+                if (size <= 0) throw new IOException("unable to copy " + dataFile);
+                position += size;
+            }
+
+            newIndex.truncate(0);
+            writeHeader(newIndex, sequence);
+            ByteBuffer entries = ByteBuffer.allocate(COMPACT_CHUNK * INDEX_ENTRY_SIZE);
+            for (long s = sequence; s < committed; s += COMPACT_CHUNK) {
+                int size = (int) Math.min(COMPACT_CHUNK, committed - s);
+                entries.clear();
+                entries.limit(size * INDEX_ENTRY_SIZE);
+                readFully(index, entries, getIndexPosition(s));
+                for (int x = 0; x < size; x++) {
+                    entries.putLong(x * INDEX_ENTRY_SIZE, entries.getLong(x * INDEX_ENTRY_SIZE) - shift);
+                }
+                entries.flip();
+                writeFully(newIndex, entries, FILE_HEADER_SIZE + (s - sequence) * INDEX_ENTRY_SIZE);
+            }
+            newData.force(false);
+            newIndex.force(false);
+        }
+
+        fileLock.writeLock().lock();
+        try {
+            data.close();
+            index.close();
+            // the data file first: if only it is replaced, recover() rebuilds the index from it
+            boolean replaced = dataTemp.renameTo(dataFile) && indexTemp.renameTo(indexFile);
+            data = open(dataFile);
+            index = open(indexFile);
+            long recovered = recover();
+            if (!replaced || recovered != committed) Log.e(LOGTAG, "compaction incomplete, records " + firstSequence + " to " + recovered);
+            else Log.i(LOGTAG, "compacted, records " + firstSequence + " to " + recovered);
+        } finally {
+            fileLock.writeLock().unlock();
+            dataTemp.delete();
+            indexTemp.delete();
+        }
+    }
+
+    // the first sequence from start to end whose index entry has a value at or after value at field, values are in order
+    private long findSequence(long start, long end, int field, long value) throws IOException {
+        long low = start;
+        long high = end;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (readIndexEntry(middle).getLong(field) < value) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    // drops what the last commit didn't complete, indexes complete records the index misses,
+    // sets firstSequence and dataSize from the files, returns the sequence number after the last record
+    private long recover() throws IOException {
+        long first = readHeader(data);
+        if (first < 0) {
+            // new transcript
+            first = 0;
+            data.truncate(0);
+            writeHeader(data, first);
+        }
+        if (readHeader(index) != first) {
+            // i.e. a crash while compacting, after the data file was replaced
+            index.truncate(0);
+            writeHeader(index, first);
+        }
+        firstSequence = first;
+
+        long entries = (index.size() - FILE_HEADER_SIZE) / INDEX_ENTRY_SIZE;
+        long size = data.size();
+        long end = FILE_HEADER_SIZE;
+        while (entries > 0) {
+            long offset = readIndexEntry(first + entries - 1).getLong(0);
+            int length = readRecordLength(offset, size);
+            if (offset >= FILE_HEADER_SIZE && length >= MIN_RECORD_LENGTH && offset + 4 + length <= size) {
+                end = offset + 4 + length;
+                break;
+            }
+            entries--;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (end + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            readFully(data, header, end);
+            int length = header.getInt(0);
+            int conversationIdLength = header.getShort(13) & 0xFFFF;
+            if (length < MIN_RECORD_LENGTH + conversationIdLength || end + 4 + length > size) break;
+
+            // the conversation id is needed for its hash
+            byte[] conversationId = new byte[conversationIdLength];
+            readFully(data, ByteBuffer.wrap(conversationId), end + RECORD_HEADER_SIZE);
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+            entry.putLong(end);
+            entry.putLong(header.getLong(4));
+            entry.putInt(conversationId.length == 0 ? 0 : new String(conversationId, StandardCharsets.UTF_8).hashCode());
+            entry.flip();
+            writeFully(index, entry, getIndexPosition(first + entries));
+            entries++;
+            end += 4 + length;
+        }
+
+        data.truncate(end);
+        index.truncate(getIndexPosition(first + entries));
+        dataSize = end;
+        return first + entries;
+    }
+
+    private long getIndexPosition(long sequence) {
+        return FILE_HEADER_SIZE + (sequence - firstSequence) * INDEX_ENTRY_SIZE;
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return new RandomAccessFile(file, "rw").getChannel();
+    }
+
+    // the first sequence number in the file, -1 if it has no header yet
+    private static long readHeader(FileChannel channel) throws IOException {
+        if (channel.size() < FILE_HEADER_SIZE) return -1;
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        readFully(channel, header, 0);
+        return header.getLong(0);
+    }
+
+    private static void writeHeader(FileChannel channel, long firstSequence) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putLong(0, firstSequence);
+        writeFully(channel, header, 0);
+    }
+
+    // the length of the record at offset, -1 if it is past size
+    private int readRecordLength(long offset, long size) throws IOException {
+        if (offset < 0 || offset + 4 > size) return -1;
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(data, length, offset);
+        return length.getInt(0);
+    }
+
+    private ByteBuffer readIndexEntry(long sequence) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        readFully(index, entry, getIndexPosition(sequence));
+        return entry;
+    }
+
+    private Record readRecord(long sequence, ByteBuffer entry) throws IOException {
+        long offset = entry.getLong(0);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(data, header, offset);
+        int length = header.getInt(0);
+        long time = header.getLong(4);
+        byte type = header.get(12);
+        int conversationIdLength = header.getShort(13) & 0xFFFF;
+
+        ByteBuffer body = ByteBuffer.allocate(length - MIN_RECORD_LENGTH);
+        readFully(data, body, offset + RECORD_HEADER_SIZE);
+        byte[] bytes = body.array();
+        String conversationId = conversationIdLength == 0 ? null : new String(bytes, 0, conversationIdLength, StandardCharsets.UTF_8);
+        String payload = new String(bytes, conversationIdLength, bytes.length - conversationIdLength, StandardCharsets.UTF_8);
+        return new Record(sequence, time, type, conversationId, payload);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int size = channel.read(buffer, position + buffer.position());
+            if (size < 0) throw new IOException("unexpected end of " + LOGTAG + " file at " + position);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
@@ -41,6 +41,12 @@ public class Attachment {
   @SerializedName("thumbnailUrl")
   private String thumbnailUrl = null;
 
+  // not generated: the content exactly as received, see getContentJson()
+  private transient String contentJson = null;
+
+  // not generated: hash of contentJson, see getContentKey()
+  private transient String contentKey = null;
+
   public Attachment contentType(String contentType) {
     this.contentType = contentType;
     return this;
@@ -131,6 +137,32 @@ public class Attachment {
     this.thumbnailUrl = thumbnailUrl;
   }
 
+   /**
+   * The content as raw JSON, as received from the bot. Set instead of content on the attachments
+   * read by ActivityJsonReader, so that a card goes to its parser without being re-serialized.
+   * @return contentJson
+  **/
+  public String getContentJson() {
+    return contentJson;
+  }
+
+  public void setContentJson(String contentJson) {
+    this.contentJson = contentJson;
+  }
+
+   /**
+   * Hash of contentJson, computed once by ActivityJsonReader so that the UI can key its caches
+   * by it without hashing the content on every bind.
+   * @return contentKey, null if there is no contentJson
+  **/
+  public String getContentKey() {
+    return contentKey;
+  }
+
+  public void setContentKey(String contentKey) {
+    this.contentKey = contentKey;
+  }
+
 
   @Override
   public boolean equals(java.lang.Object o) {
@@ -144,13 +176,14 @@ public class Attachment {
     return Objects.equals(this.contentType, attachment.contentType) &&
         Objects.equals(this.contentUrl, attachment.contentUrl) &&
         Objects.equals(this.content, attachment.content) &&
+        Objects.equals(this.contentJson, attachment.contentJson) &&
         Objects.equals(this.name, attachment.name) &&
         Objects.equals(this.thumbnailUrl, attachment.thumbnailUrl);
   }
 
   @Override
   public int hashCode() {
-    return Objects.hash(contentType, contentUrl, content, name, thumbnailUrl);
+    return Objects.hash(contentType, contentUrl, content, contentJson, name, thumbnailUrl);
   }
 
 
@@ -1,9 +1,12 @@
 
 package client.model;
 
+import java.lang.reflect.Type;
 import java.util.List;
+import com.google.gson.Gson;
 import com.google.gson.annotations.Expose;
 import com.google.gson.annotations.SerializedName;
+import com.google.gson.reflect.TypeToken;
 
 /**
  * Activity model
@@ -11,6 +14,10 @@ import com.google.gson.annotations.SerializedName;
  */
 public class BotConnectorActivity {
 
+    // used to decode the members that are kept as raw JSON until first accessed
+    private static final Gson lazyGson = new Gson();
+    private static final Type OBJECT_LIST_TYPE = new TypeToken<List<Object>>(){}.getType();
+
     @SerializedName("attachmentLayout")
     @Expose
     private String attachmentLayout;
@@ -97,20 +104,73 @@ public class BotConnectorActivity {
     @Expose
     public SuggestedActions suggestedActions;
 
-    public List<Object> getAttachments() {
+    // raw JSON as received from the bot, not serialized
+    private transient String activityJson;
+    private transient String attachmentsJson;
+    private transient String entitiesJson;
+    private transient String channelDataJson;
+    private transient List<Attachment> attachmentList;
+
+    public synchronized List<Object> getAttachments() {
+        if (attachmentsJson != null) {
+            attachments = lazyGson.fromJson(attachmentsJson, OBJECT_LIST_TYPE);
+            attachmentsJson = null;
+        }
         return attachments;
     }
 
     public void setAttachments(List<Object> attachments) {
         this.attachments = attachments;
+        this.attachmentsJson = null;
+    }
+
+    /**
+     * Typed attachments, their content is kept as raw JSON (see Attachment.getContentJson()).
+     * Filled in by ActivityJsonReader when the activity is read.
+     * @return the attachments, null if there are none
+     */
+    public List<Attachment> getAttachmentList() {
+        return attachmentList;
+    }
+
+    public void setAttachmentList(List<Attachment> attachmentList) {
+        this.attachmentList = attachmentList;
+    }
+
+    /**
+     * @return the attachments exactly as received, or null if they were decoded or not received as JSON
+     */
+    public String getAttachmentsJson() {
+        return attachmentsJson;
+    }
+
+    /**
+     * Set the attachments as raw JSON, they are decoded on the first call to getAttachments()
+     */
+    public void setAttachmentsJson(String attachmentsJson) {
+        this.attachmentsJson = attachmentsJson;
+        this.attachments = null;
     }
 
     public ChannelData getChannelData() {
+        if (channelDataJson != null) {
+            channelData = lazyGson.fromJson(channelDataJson, ChannelData.class);
+            channelDataJson = null;
+        }
         return channelData;
     }
 
     public void setChannelData(ChannelData channelData) {
         this.channelData = channelData;
+        this.channelDataJson = null;
+    }
+
+    /**
+     * Set the channel data as raw JSON, it is decoded on the first call to getChannelData()
+     */
+    public void setChannelDataJson(String channelDataJson) {
+        this.channelDataJson = channelDataJson;
+        this.channelData = null;
     }
 
     public String getChannelId() {
@@ -130,11 +190,24 @@ public class BotConnectorActivity {
     }
 
     public List<Object> getEntities() {
+        if (entitiesJson != null) {
+            entities = lazyGson.fromJson(entitiesJson, OBJECT_LIST_TYPE);
+            entitiesJson = null;
+        }
         return entities;
     }
 
     public void setEntities(List<Object> entities) {
         this.entities = entities;
+        this.entitiesJson = null;
+    }
+
+    /**
+     * Set the entities as raw JSON, they are decoded on the first call to getEntities()
+     */
+    public void setEntitiesJson(String entitiesJson) {
+        this.entitiesJson = entitiesJson;
+        this.entities = null;
     }
 
     public From getFrom() {
@@ -229,7 +302,7 @@ public class BotConnectorActivity {
         return value;
     }
 
-    public void setValue(ActivityValue value) {
+    public void setValue(Object value) {
         this.value = value;
     }
 
@@ -280,4 +353,15 @@ public class BotConnectorActivity {
     public void setName(String name) {
         this.name = name;
     }
+
+    /**
+     * @return the JSON this activity was read from, or null if it was created locally
+     */
+    public String getActivityJson() {
+        return activityJson;
+    }
+
+    public void setActivityJson(String activityJson) {
+        this.activityJson = activityJson;
+    }
 }
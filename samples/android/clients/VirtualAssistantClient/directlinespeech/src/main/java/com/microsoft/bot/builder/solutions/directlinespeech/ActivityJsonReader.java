@@ -0,0 +1,280 @@
+package com.microsoft.bot.builder.solutions.directlinespeech;
+
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.microsoft.bot.builder.solutions.directlinespeech.utils.HashUtils;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import client.model.Attachment;
+import client.model.BotConnectorActivity;
+import client.model.ConversationBot;
+import client.model.From;
+import client.model.Recipient;
+import client.model.SuggestedActions;
+
+/**
+ * Reads activities received from the bot without binding the whole document.
+ * The members the UI needs on every activity are pulled directly from a JsonReader. The
+ * attachments, entities and channelData are skipped and kept as raw JSON slices, they are only
+ * decoded when first accessed on the BotConnectorActivity. The attachments are also read into the
+ * typed attachment list here, with their content kept as raw JSON and its hash, so that the UI
+ * never parses or hashes.
+ * If that fails (i.e. on JSON the slicing doesn't follow), the activity is bound by Gson instead.
+ */
+public class ActivityJsonReader {
+
+    // CONSTANTS
+    private static final String LOGTAG = "ActivityJsonReader";
+
+    // STATE
+    private final Gson gson;
+
+    public ActivityJsonReader(Gson gson) {
+        this.gson = gson;
+    }
+
+    /**
+     * @param activityJson the activity as received from the bot
+     * @return the activity, or null if the JSON is not a valid activity
+     */
+    public BotConnectorActivity read(String activityJson) {
+        if (activityJson == null) return null;
+        try {
+            return readActivity(activityJson);
+        } catch (IOException | IllegalStateException | IndexOutOfBoundsException | NumberFormatException | JsonParseException e) {
+            BotConnectorActivity activity = bindActivity(activityJson);
+            String id = activity != null ? activity.getId() : null;
+            Log.e(LOGTAG, "unable to read activity " + id + ", " + (activity != null ? "bound it instead" : "dropped") + ": " + e.getMessage());
+            return activity;
+        }
+    }
+
+    // the slow path, binds the whole document
+    private BotConnectorActivity bindActivity(String json) {
+        BotConnectorActivity activity;
+        try {
+            activity = gson.fromJson(json, BotConnectorActivity.class);
+        } catch (JsonParseException e) {
+            return null;
+        }
+        if (activity == null) return null;
+        activity.setActivityJson(json);
+        if (activity.getAttachments() != null) activity.setAttachmentList(readAttachments(gson.toJson(activity.getAttachments())));
+        return activity;
+    }
+
+    private BotConnectorActivity readActivity(String json) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) return null;
+
+        BotConnectorActivity activity = new BotConnectorActivity();
+        activity.setActivityJson(json);
+
+        // the cursor tracks the same members as the reader so that raw slices can be cut from the json
+        int cursor = json.indexOf('{') + 1;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            int valueStart = findValueStart(json, cursor);
+            cursor = findValueEnd(json, valueStart);
+
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+
+            switch (name) {
+                case "type": activity.setType(nextString(reader)); break;
+                case "id": activity.setId(nextString(reader)); break;
+                case "text": activity.setText(nextString(reader)); break;
+                case "speak": activity.setSpeak(nextString(reader)); break;
+                case "inputHint": activity.setInputHint(nextString(reader)); break;
+                case "replyToId": activity.setReplyToId(nextString(reader)); break;
+                case "name": activity.setName(nextString(reader)); break;
+                case "locale": activity.setLocale(nextString(reader)); break;
+                case "timestamp": activity.setTimestamp(nextString(reader)); break;
+                case "channelId": activity.setChannelId(nextString(reader)); break;
+                case "serviceUrl": activity.setServiceUrl(nextString(reader)); break;
+                case "attachmentLayout": activity.setAttachmentLayout(nextString(reader)); break;
+                case "code": activity.setCode(nextString(reader)); break;
+                case "File": activity.setFile(nextString(reader)); break;
+                case "Amount": activity.setAmount(nextString(reader)); break;
+                case "requestedState": activity.setRequestedState(nextString(reader)); break;
+                case "seat": activity.setSeat(nextString(reader)); break;
+                case "suggestedActions": activity.setSuggestedActions(gson.fromJson(reader, SuggestedActions.class)); break;
+                case "from": activity.setFrom(gson.fromJson(reader, From.class)); break;
+                case "recipient": activity.setRecipient(gson.fromJson(reader, Recipient.class)); break;
+                case "conversation": activity.setConversation(gson.fromJson(reader, ConversationBot.class)); break;
+                case "value": activity.setValue(gson.fromJson(reader, Object.class)); break;
+                case "attachments":
+                    reader.skipValue();
+                    String attachmentsJson = json.substring(valueStart, cursor);
+                    activity.setAttachmentsJson(attachmentsJson);
+                    activity.setAttachmentList(readAttachmentArray(attachmentsJson));
+                    break;
+                case "entities":
+                    reader.skipValue();
+                    activity.setEntitiesJson(json.substring(valueStart, cursor));
+                    break;
+                case "channelData":
+                    reader.skipValue();
+                    activity.setChannelDataJson(json.substring(valueStart, cursor));
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        return activity;
+    }
+
+    /**
+     * Reads attachments without decoding their content, which is kept as a raw JSON slice
+     * @param attachmentsJson the attachments array of an activity
+     * @return the attachments, or null if the JSON is not a valid array
+     */
+    private static List<Attachment> readAttachments(String attachmentsJson) {
+        try {
+            return readAttachmentArray(attachmentsJson);
+        } catch (IOException | IllegalStateException | IndexOutOfBoundsException | NumberFormatException | JsonParseException e) {
+            Log.e(LOGTAG, "unable to read attachments: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static List<Attachment> readAttachmentArray(String json) throws IOException {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) return null;
+
+        List<Attachment> attachments = new ArrayList<>();
+        int cursor = json.indexOf('[') + 1;
+        reader.beginArray();
+        while (reader.hasNext()) {
+            int elementStart = skipWhitespace(json, cursor);
+            if (json.charAt(elementStart) == ',') elementStart = skipWhitespace(json, elementStart + 1);
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                cursor = findValueEnd(json, elementStart);
+                continue;
+            }
+
+            Attachment attachment = new Attachment();
+            cursor = elementStart + 1;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                int valueStart = findValueStart(json, cursor);
+                cursor = findValueEnd(json, valueStart);
+
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+
+                switch (name) {
+                    case "contentType": attachment.setContentType(nextString(reader)); break;
+                    case "contentUrl": attachment.setContentUrl(nextString(reader)); break;
+                    case "name": attachment.setName(nextString(reader)); break;
+                    case "thumbnailUrl": attachment.setThumbnailUrl(nextString(reader)); break;
+                    case "content":
+                        reader.skipValue();
+                        attachment.setContentJson(json.substring(valueStart, cursor));
+                        attachment.setContentKey(HashUtils.sha256Hex(attachment.getContentJson()));
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            cursor = skipWhitespace(json, cursor) + 1; // past the closing brace
+            attachments.add(attachment);
+        }
+        reader.endArray();
+
+        return attachments;
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        // same leniency as Gson's String adapter: booleans and numbers are read as text
+        if (reader.peek() == JsonToken.BOOLEAN) return Boolean.toString(reader.nextBoolean());
+        return reader.nextString();
+    }
+
+    /**
+     * @param json the activity
+     * @param cursor position right after the previous member (or the opening brace)
+     * @return position of the first character of the next member's value
+     */
+    private static int findValueStart(String json, int cursor) {
+        int i = skipWhitespace(json, cursor);
+        if (json.charAt(i) == ',') i = skipWhitespace(json, i + 1);
+        i = skipString(json, i); // member name
+        i = skipWhitespace(json, i);
+        if (json.charAt(i) != ':') throw new IllegalStateException("expected ':' at " + i);
+        return skipWhitespace(json, i + 1);
+    }
+
+    /**
+     * @param json the activity
+     * @param start position of the first character of a value
+     * @return position right after the value
+     */
+    private static int findValueEnd(String json, int start) {
+        char c = json.charAt(start);
+        if (c == '"') return skipString(json, start);
+        if (c != '{' && c != '[') {
+            // literal: number, true, false or null
+            int i = start;
+            while (i < json.length() && ",}] \t\r\n".indexOf(json.charAt(i)) == -1) i++;
+            return i;
+        }
+
+        int depth = 0;
+        int i = start;
+        while (i < json.length()) {
+            c = json.charAt(i);
+            if (c == '"') {
+                i = skipString(json, i);
+                continue;
+            }
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+                if (depth == 0) return i + 1;
+            }
+            i++;
+        }
+        throw new IllegalStateException("unterminated value at " + start);
+    }
+
+    private static int skipString(String json, int start) {
+        if (json.charAt(start) != '"') throw new IllegalStateException("expected '\"' at " + start);
+        for (int i = start + 1; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (c == '"') {
+                return i + 1;
+            }
+        }
+        throw new IllegalStateException("unterminated string at " + start);
+    }
+
+    private static int skipWhitespace(String json, int start) {
+        int i = start;
+        while (i < json.length() && Character.isWhitespace(json.charAt(i))) i++;
+        return i;
+    }
+}
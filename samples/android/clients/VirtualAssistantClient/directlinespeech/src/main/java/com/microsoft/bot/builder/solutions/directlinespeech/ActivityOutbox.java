@@ -0,0 +1,268 @@
+package com.microsoft.bot.builder.solutions.directlinespeech;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Store for the activities sent while the connection to the bot is lost.
+ * Records are replayed in order once connected again. Each activity carries its outbox id as the
+ * activity id so the bot can recognize duplicates. Records older than MAX_AGE_MS are dropped
+ * instead of being replayed into what is by then a different conversation.
+ * Durable records (i.e. the user's messages) are also appended to a file so that they survive
+ * process death, the others (i.e. events sent again on every start) are kept in memory only.
+ * The file is only read and written on a background thread, acknowledged records are compacted away.
+ *
+ * File format, one record per line:
+ *   A id time coalesceKey json    activity added at time (ms since epoch), "-" when there's no coalesce key
+ *   K id                          activity acknowledged (sent, superseded or expired)
+ */
+public class ActivityOutbox {
+
+    // CONSTANTS
+    private static final String LOGTAG = "ActivityOutbox";
+    public static final String OUTBOXFILENAME = "outbox.log";
+    private static final int COMPACT_AFTER_ACKNOWLEDGED = 32;
+    private static final long MAX_AGE_MS = 10 * 60 * 1000;
+    private static final long IDLE_THREAD_TIMEOUT_S = 30;
+
+    // STATE
+    private final File file;
+    private final Map<String, Record> pending = new LinkedHashMap<>(); // guarded by this, in insertion order
+    private int acknowledgedSinceCompaction; // guarded by this
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private final ThreadPoolExecutor executor; // single thread, so the writes are done in order
+
+    public static class Record {
+        public final String id;
+        public final long time;
+        public final String coalesceKey;
+        public final String activityJson;
+        final boolean durable;
+
+        Record(String id, long time, String coalesceKey, String activityJson, boolean durable) {
+            this.id = id;
+            this.time = time;
+            this.coalesceKey = coalesceKey;
+            this.activityJson = activityJson;
+            this.durable = durable;
+        }
+    }
+
+    /**
+     * @param directory the outbox file is created in this directory, the pending records are loaded from it in the background
+     */
+    public ActivityOutbox(String directory) {
+        file = new File(directory, OUTBOXFILENAME);
+        executor = new ThreadPoolExecutor(1, 1, IDLE_THREAD_TIMEOUT_S, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> new Thread(runnable, LOGTAG));
+        executor.allowCoreThreadTimeOut(true);
+        executor.execute(this::load);
+    }
+
+    /**
+     * Append an activity, a pending activity with the same coalesce key is acknowledged (superseded)
+     * @param id unique id, also set as the activity id
+     * @param coalesceKey null if the activity is never superseded
+     * @param durable false if the activity is not worth keeping across process death, i.e. it is sent again on start
+     * @return the id of the superseded activity, null if none
+     */
+    public synchronized String add(String id, String coalesceKey, String activityJson, boolean durable) {
+        StringBuilder records = new StringBuilder();
+        String supersededId = null;
+        if (coalesceKey != null) {
+            for (Record record : pending.values()) {
+                if (coalesceKey.equals(record.coalesceKey)) {
+                    supersededId = record.id;
+                    break;
+                }
+            }
+        }
+        if (supersededId != null) {
+            Record superseded = pending.remove(supersededId);
+            if (superseded.durable) {
+                records.append("K ").append(supersededId).append('\n');
+                acknowledgedSinceCompaction++;
+            }
+        }
+        Record record = new Record(id, System.currentTimeMillis(), coalesceKey, activityJson, durable);
+        pending.put(id, record);
+        if (durable) appendRecord(records, record);
+        if (records.length() > 0) append(records.toString());
+        return supersededId;
+    }
+
+    /**
+     * Mark the activity as delivered, compacts the file when enough records are acknowledged
+     */
+    public synchronized void acknowledge(String id) {
+        Record record = pending.remove(id);
+        if (record == null || !record.durable) return;
+        acknowledgedSinceCompaction++;
+
+        if (acknowledgedSinceCompaction >= COMPACT_AFTER_ACKNOWLEDGED || !hasDurable()) {
+            compact();
+        } else {
+            append("K " + id + "\n");
+        }
+    }
+
+    /**
+     * Blocks until the records of the previous process are loaded
+     * @return the records not acknowledged yet and not expired, in the order they were added
+     */
+    public List<Record> getPending() {
+        try {
+            loaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            dropExpired();
+            return new ArrayList<>(pending.values());
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return pending.isEmpty();
+    }
+
+    // runs on the executor
+    private void load() {
+        Map<String, Record> records = new LinkedHashMap<>();
+        if (file.exists()) {
+            try (InputStream stream = new FileInputStream(file)) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length());
+                byte[] buffer = new byte[8 * 1024];
+                int read;
+                while ((read = stream.read(buffer)) != -1) bytes.write(buffer, 0, read);
+                String content = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+                int start = 0;
+                int end;
+                // a last line without its newline was torn by a crash while appending, skip it
+                while ((end = content.indexOf('\n', start)) != -1) {
+                    String[] fields = content.substring(start, end).split(" ", 5);
+                    start = end + 1;
+                    if (fields[0].equals("A") && fields.length == 5) {
+                        try {
+                            long time = Long.parseLong(fields[2]);
+                            String coalesceKey = fields[3].equals("-") ? null : fields[3];
+                            records.put(fields[1], new Record(fields[1], time, coalesceKey, fields[4], true));
+                        } catch (NumberFormatException e) {
+                            Log.e(LOGTAG, "skipping malformed record " + fields[1]);
+                        }
+                    } else if (fields[0].equals("K") && fields.length == 2) {
+                        records.remove(fields[1]);
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(LOGTAG, "unable to load outbox: " + e.getMessage());
+            }
+        }
+
+        synchronized (this) {
+            // the records added meanwhile come after the loaded ones, and supersede them
+            Map<String, Record> added = new LinkedHashMap<>(pending);
+            pending.clear();
+            for (Record record : records.values()) {
+                if (record.coalesceKey == null || !hasCoalesceKey(added, record.coalesceKey)) pending.put(record.id, record);
+            }
+            pending.putAll(added);
+            dropExpired();
+            compact();
+        }
+        loaded.countDown();
+    }
+
+    private static boolean hasCoalesceKey(Map<String, Record> records, String coalesceKey) {
+        for (Record record : records.values()) {
+            if (coalesceKey.equals(record.coalesceKey)) return true;
+        }
+        return false;
+    }
+
+    private boolean hasDurable() {
+        for (Record record : pending.values()) {
+            if (record.durable) return true;
+        }
+        return false;
+    }
+
+    // the expired records are left in the file until the next compaction, they are dropped again on load
+    private void dropExpired() {
+        long expired = System.currentTimeMillis() - MAX_AGE_MS;
+        Iterator<Record> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            Record record = iterator.next();
+            if (record.time >= expired) continue;
+            Log.i(LOGTAG, "dropping expired activity " + record.id);
+            iterator.remove();
+            if (record.durable) acknowledgedSinceCompaction++;
+        }
+    }
+
+    private static void appendRecord(StringBuilder records, Record record) {
+        records.append("A ").append(record.id).append(' ').append(record.time)
+                .append(' ').append(record.coalesceKey == null ? "-" : record.coalesceKey)
+                .append(' ').append(record.activityJson).append('\n');
+    }
+
+    // rewrite the file with the durable pending records only, in the background
+    private void compact() {
+        acknowledgedSinceCompaction = 0;
+        StringBuilder records = new StringBuilder();
+        for (Record record : pending.values()) {
+            if (record.durable) appendRecord(records, record);
+        }
+        String content = records.toString();
+
+        executor.execute(() -> {
+            if (content.isEmpty()) {
+                // nothing left to replay
+                if (file.exists() && !file.delete()) Log.e(LOGTAG, "unable to delete " + file);
+                return;
+            }
+
+            File temp = new File(file.getPath() + ".tmp");
+            try (FileOutputStream stream = new FileOutputStream(temp)) {
+                Writer writer = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+                writer.write(content);
+                writer.flush();
+                stream.getFD().sync();
+            } catch (IOException e) {
+                Log.e(LOGTAG, "unable to compact outbox: " + e.getMessage());
+                return;
+            }
+            if (!temp.renameTo(file)) Log.e(LOGTAG, "unable to replace " + file);
+        });
+    }
+
+    // in the background, in the order of the calls
+    private void append(String records) {
+        executor.execute(() -> {
+            try (FileOutputStream stream = new FileOutputStream(file, true)) {
+                stream.write(records.getBytes(StandardCharsets.UTF_8));
+                stream.getFD().sync();
+            } catch (IOException e) {
+                Log.e(LOGTAG, "unable to append to outbox: " + e.getMessage());
+            }
+        });
+    }
+}
@@ -0,0 +1,148 @@
+package com.microsoft.bot.builder.solutions.directlinespeech;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Queue for activities sent to the bot.
+ * Events are held for a short flush window so that the ones sent together (i.e. at startup) go out
+ * back-to-back, and a pending event is replaced by a newer one with the same coalesce key (i.e. only
+ * the latest VA.Location is sent). Urgent sends such as user messages flush the queue right away.
+ * Activities always leave the queue in the order they were first enqueued.
+ */
+public class ActivitySendQueue {
+
+    // CONSTANTS
+    public static final long FLUSH_WINDOW_MS = 250;
+
+    // STATE
+    private final Handler handler;
+    private final List<Entry> pending = new ArrayList<>();
+    private final Runnable flushRunnable = this::flush;
+    private boolean flushScheduled;
+    private final Metrics metrics = new Metrics();
+
+    private static class Entry {
+        final String coalesceKey;
+        final long enqueuedAtMs;
+        Runnable send;
+
+        Entry(String coalesceKey, Runnable send) {
+            this.coalesceKey = coalesceKey;
+            this.send = send;
+            this.enqueuedAtMs = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Snapshot of the queue counters
+     */
+    public static class Metrics {
+        public int depth;
+        public int peakDepth;
+        public long enqueued;
+        public long coalesced;
+        public long sent;
+        public long totalQueueTimeMs;
+        public long maxQueueTimeMs;
+
+        public long getAverageQueueTimeMs() {
+            return sent == 0 ? 0 : totalQueueTimeMs / sent;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "depth=%d peak=%d enqueued=%d coalesced=%d sent=%d avgQueueTimeMs=%d maxQueueTimeMs=%d",
+                    depth, peakDepth, enqueued, coalesced, sent, getAverageQueueTimeMs(), maxQueueTimeMs);
+        }
+    }
+
+    /**
+     * @param handler the sends run on this handler's thread
+     */
+    public ActivitySendQueue(Handler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * @param coalesceKey a pending send with the same key is replaced by this one, null to never coalesce
+     * @param urgent true to flush the queue now (user messages), false to wait for the flush window
+     * @param send performs the actual send
+     */
+    public synchronized void enqueue(String coalesceKey, boolean urgent, Runnable send) {
+        metrics.enqueued++;
+
+        Entry existing = coalesceKey == null ? null : find(coalesceKey);
+        if (existing != null) {
+            existing.send = send; // keeps its place in the queue
+            metrics.coalesced++;
+        } else {
+            pending.add(new Entry(coalesceKey, send));
+            metrics.peakDepth = Math.max(metrics.peakDepth, pending.size());
+        }
+
+        if (urgent) {
+            handler.removeCallbacks(flushRunnable);
+            handler.post(flushRunnable);
+            flushScheduled = true;
+        } else if (!flushScheduled) {
+            handler.postDelayed(flushRunnable, FLUSH_WINDOW_MS);
+            flushScheduled = true;
+        }
+    }
+
+    /**
+     * Drop the pending sends
+     */
+    public synchronized void clear() {
+        handler.removeCallbacks(flushRunnable);
+        flushScheduled = false;
+        pending.clear();
+    }
+
+    public synchronized Metrics getMetrics() {
+        Metrics snapshot = new Metrics();
+        snapshot.depth = pending.size();
+        snapshot.peakDepth = metrics.peakDepth;
+        snapshot.enqueued = metrics.enqueued;
+        snapshot.coalesced = metrics.coalesced;
+        snapshot.sent = metrics.sent;
+        snapshot.totalQueueTimeMs = metrics.totalQueueTimeMs;
+        snapshot.maxQueueTimeMs = metrics.maxQueueTimeMs;
+        return snapshot;
+    }
+
+    private Entry find(String coalesceKey) {
+        for (Entry entry : pending) {
+            if (coalesceKey.equals(entry.coalesceKey)) return entry;
+        }
+        return null;
+    }
+
+    private void flush() {
+        List<Entry> batch;
+        long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            flushScheduled = false;
+            if (pending.isEmpty()) return;
+            batch = new ArrayList<>(pending);
+            pending.clear();
+            for (Entry entry : batch) {
+                long queueTime = now - entry.enqueuedAtMs;
+                metrics.sent++;
+                metrics.totalQueueTimeMs += queueTime;
+                metrics.maxQueueTimeMs = Math.max(metrics.maxQueueTimeMs, queueTime);
+            }
+        }
+
+        // send outside the lock, in order
+        for (Entry entry : batch) {
+            entry.send.run();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.microsoft.bot.builder.solutions.directlinespeech;
+
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Jitter buffer between the TTS streams and the AudioTrack.
+ * The streams are read ahead into chunks taken from a fixed pool, so the memory is bounded and the
+ * chunks are reused. When the pool is exhausted the reader blocks until playback returns chunks.
+ * An underrun is counted when playback is running and has to wait for data.
+ * A discarded stream returns its chunks to the pool right away, without waiting for its source.
+ */
+public class AudioPrefetchBuffer {
+
+    // CONSTANTS
+    private static final int CHUNK_SIZE = 4 * 1024;
+    private static final int CHUNK_COUNT = 64; // 256KB, 8s of 16kHz 16bit mono
+    private static final Chunk END = new Chunk(0); // marks the end of a stream, not pooled
+
+    // STATE
+    private final BlockingQueue<Chunk> freeChunks = new ArrayBlockingQueue<>(CHUNK_COUNT);
+    private final AtomicInteger peakBufferedChunks = new AtomicInteger();
+    private final AtomicLong underruns = new AtomicLong();
+    private final AtomicLong prefetchedStreams = new AtomicLong();
+
+    static class Chunk {
+        final byte[] data;
+        int length;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    /**
+     * Chunks of one TTS stream, in order, ending with END
+     */
+    public static class Stream {
+        final int generation;
+        final BlockingQueue<Chunk> chunks = new LinkedBlockingQueue<>(); // bounded by the pool
+        private boolean discarded; // guarded by this
+
+        Stream(int generation) {
+            this.generation = generation;
+        }
+    }
+
+    public interface CancellationCheck {
+        boolean isCancelled();
+    }
+
+    /**
+     * Snapshot of the buffer counters
+     */
+    public static class Metrics {
+        public int bufferedBytes;
+        public int peakBufferedBytes;
+        public int capacityBytes;
+        public long underruns;
+        public long prefetchedStreams;
+
+        public float getFillLevel() {
+            return capacityBytes == 0 ? 0 : (float) bufferedBytes / capacityBytes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "fill=%.0f%% buffered=%d peak=%d capacity=%d underruns=%d streams=%d",
+                    getFillLevel() * 100, bufferedBytes, peakBufferedBytes, capacityBytes, underruns, prefetchedStreams);
+        }
+    }
+
+    public AudioPrefetchBuffer() {
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            freeChunks.add(new Chunk(CHUNK_SIZE));
+        }
+    }
+
+    /**
+     * Read the source into the stream's chunks until its end, blocks while the pool is exhausted
+     * @param cancelled checked between chunks, reading stops once it returns true
+     */
+    public void fill(AudioSource source, Stream target, CancellationCheck cancelled) throws InterruptedException {
+        prefetchedStreams.incrementAndGet();
+        try {
+            while (!cancelled.isCancelled()) {
+                Chunk chunk = freeChunks.take();
+                peakBufferedChunks.accumulateAndGet(CHUNK_COUNT - freeChunks.size(), Math::max);
+                chunk.length = (int) source.read(chunk.data);
+                synchronized (target) {
+                    if (chunk.length <= 0 || target.discarded) {
+                        recycle(chunk);
+                        break;
+                    }
+                    target.chunks.add(chunk);
+                }
+            }
+        } finally {
+            target.chunks.add(END);
+        }
+    }
+
+    /**
+     * @param playing true if audio is being played, waiting for data is then an underrun
+     * @return the next chunk of the stream, null at its end or once discarded. Pass it to recycle() once written.
+     */
+    public Chunk next(Stream stream, boolean playing) throws InterruptedException {
+        Chunk chunk = stream.chunks.poll();
+        if (chunk == null) {
+            if (playing) underruns.incrementAndGet();
+            chunk = stream.chunks.take();
+        }
+        return chunk == END ? null : chunk;
+    }
+
+    public void recycle(Chunk chunk) {
+        if (chunk != null && chunk != END) freeChunks.add(chunk);
+    }
+
+    /**
+     * Return the buffered chunks of the stream to the pool, chunks read later are returned as they come.
+     * A reader waiting in next() gets the end of the stream.
+     * @return number of bytes dropped
+     */
+    public long discard(Stream stream) {
+        long dropped = 0;
+        synchronized (stream) {
+            stream.discarded = true;
+            Chunk chunk;
+            while ((chunk = stream.chunks.poll()) != null) {
+                if (chunk != END) dropped += chunk.length;
+                recycle(chunk);
+            }
+            stream.chunks.add(END);
+        }
+        return dropped;
+    }
+
+    public Metrics getMetrics() {
+        Metrics metrics = new Metrics();
+        metrics.bufferedBytes = (CHUNK_COUNT - freeChunks.size()) * CHUNK_SIZE;
+        metrics.peakBufferedBytes = peakBufferedChunks.get() * CHUNK_SIZE;
+        metrics.capacityBytes = CHUNK_COUNT * CHUNK_SIZE;
+        metrics.underruns = underruns.get();
+        metrics.prefetchedStreams = prefetchedStreams.get();
+        return metrics;
+    }
+}
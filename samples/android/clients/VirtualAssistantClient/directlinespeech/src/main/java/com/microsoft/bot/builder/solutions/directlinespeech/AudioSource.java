@@ -0,0 +1,27 @@
+package com.microsoft.bot.builder.solutions.directlinespeech;
+
+/**
+ * PCM audio played by the Synthesizer, 16kHz 16bit mono
+ */
+public interface AudioSource {
+
+    /**
+     * Blocks until data is available
+     * @return number of bytes read, 0 or less at the end of the audio
+     */
+    long read(byte[] buffer);
+
+    /**
+     * @return true if the audio was cut short, i.e. by a decoding error or a canceled turn.
+     *         Only meaningful once read() returned 0 or less
+     */
+    default boolean isTruncated() {
+        return false;
+    }
+
+    /**
+     * Release the resources of the source, called once it is no longer read
+     */
+    default void close() {
+    }
+}
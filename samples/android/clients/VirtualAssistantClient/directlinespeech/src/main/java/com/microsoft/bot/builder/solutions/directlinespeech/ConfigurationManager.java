@@ -2,6 +2,7 @@ package com.microsoft.bot.builder.solutions.directlinespeech;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.util.Log;
 
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
@@ -89,6 +90,37 @@ public class ConfigurationManager {
         if (configuration.linkedAccountEndpoint == null) {
             configuration.linkedAccountEndpoint = defaultConfiguration.linkedAccountEndpoint;
         }
+        if (configuration.connectionIdleTimeoutSeconds == null) {
+            configuration.connectionIdleTimeoutSeconds = defaultConfiguration.connectionIdleTimeoutSeconds;
+        }
+        if (configuration.responseTimeoutMinSeconds == null) {
+            configuration.responseTimeoutMinSeconds = defaultConfiguration.responseTimeoutMinSeconds;
+        }
+        if (configuration.responseTimeoutMaxSeconds == null) {
+            configuration.responseTimeoutMaxSeconds = defaultConfiguration.responseTimeoutMaxSeconds;
+        }
+        if (configuration.ttsOutputFormat == null) {
+            configuration.ttsOutputFormat = defaultConfiguration.ttsOutputFormat;
+        }
+        if (configuration.microphonePreRollMs == null) {
+            configuration.microphonePreRollMs = defaultConfiguration.microphonePreRollMs;
+        }
+        if (configuration.vadEndOfSpeechSilenceMs == null) {
+            configuration.vadEndOfSpeechSilenceMs = defaultConfiguration.vadEndOfSpeechSilenceMs;
+        }
+        if (configuration.vadEndOfSpeechSilenceMs > 0 && configuration.microphonePreRollMs <= 0) {
+            // the detector runs on the app's own microphone stream, which is only used with a pre-roll
+            Log.w(LOGTAG, "VadEndOfSpeechSilenceMs is ignored, it needs MicrophonePreRollMs > 0");
+        }
+        if (configuration.vadEnergyThresholdDb == null) {
+            configuration.vadEnergyThresholdDb = defaultConfiguration.vadEnergyThresholdDb;
+        }
+        if (configuration.vadZeroCrossingRateThreshold == null) {
+            configuration.vadZeroCrossingRateThreshold = defaultConfiguration.vadZeroCrossingRateThreshold;
+        }
+        if (configuration.vadGateLeadingSilence == null) {
+            configuration.vadGateLeadingSilence = defaultConfiguration.vadGateLeadingSilence;
+        }
         if (configuration.signedIn == null) {
             configuration.signedIn = false;
         }
@@ -0,0 +1,196 @@
+package com.microsoft.bot.builder.solutions.directlinespeech;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.Random;
+
+/**
+ * Owns the connection state of the DialogServiceConnector.
+ * Connect requests are ignored while a connect is already in flight or the connection is up, so it
+ * is cheap to call connect() ahead of use (pre-warming). A lost connection is re-established with
+ * jittered exponential backoff, and an idle connection is closed after the configured quiet period.
+ *
+ * State machine:
+ *   DISCONNECTED --connect()--> CONNECTING --onConnected()--> CONNECTED
+ *   CONNECTING --onConnectFailed()--> BACKOFF (or DISCONNECTED once the attempts are exhausted)
+ *   CONNECTED --onConnectionLost()--> BACKOFF --delay--> CONNECTING
+ *   CONNECTED --idle timeout / disconnect()--> DISCONNECTED
+ * There is no idle timeout while kept alive, i.e. while keyword recognition is armed: the keyword
+ * can't be spotted once the connector is disconnected.
+ */
+public class ConnectionManager {
+
+    // CONSTANTS
+    private static final String LOGTAG = "ConnectionManager";
+    private static final long BACKOFF_BASE_MS = 1000;
+    private static final long BACKOFF_MAX_MS = 60 * 1000;
+    private static final int MAX_RECONNECT_ATTEMPTS = 8;
+
+    public enum State {
+        DISCONNECTED,
+        CONNECTING,
+        CONNECTED,
+        BACKOFF
+    }
+
+    /**
+     * Performs the actual connect and disconnect on the connector.
+     * The outcome of connect() must be reported with onConnected() or onConnectFailed().
+     */
+    public interface Connector {
+        void connect();
+        void disconnect();
+    }
+
+    // STATE
+    private final Handler handler;
+    private final Connector connector;
+    private final long idleTimeoutMs;
+    private final Random random = new Random();
+    private final Runnable reconnectRunnable = this::reconnect;
+    private final Runnable idleRunnable = this::disconnectIdle;
+    private State state = State.DISCONNECTED;
+    private int attempt;
+    private boolean keepAlive;
+
+    /**
+     * @param handler the backoff and idle timers run on this handler
+     * @param idleTimeoutMs the connection is closed after this period without activity, 0 to keep it open
+     */
+    public ConnectionManager(Handler handler, Connector connector, long idleTimeoutMs) {
+        this.handler = handler;
+        this.connector = connector;
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized boolean isConnected() {
+        return state == State.CONNECTED;
+    }
+
+    /**
+     * Make sure the connection is up or coming up. A pending backoff reconnect is done right away.
+     * @param reason for the log
+     */
+    public synchronized void connect(String reason) {
+        switch (state) {
+            case CONNECTED:
+                onActivity();
+                return;
+            case CONNECTING:
+                Log.d(LOGTAG, "connect (" + reason + "): already in flight");
+                return;
+            case BACKOFF:
+                handler.removeCallbacks(reconnectRunnable);
+                break;
+        }
+        Log.i(LOGTAG, "connect (" + reason + ")");
+        startConnect();
+    }
+
+    /**
+     * Close the connection, no reconnect is attempted until connect() is called again
+     */
+    public synchronized void disconnect() {
+        handler.removeCallbacks(reconnectRunnable);
+        handler.removeCallbacks(idleRunnable);
+        state = State.DISCONNECTED;
+        attempt = 0;
+        connector.disconnect();
+    }
+
+    /**
+     * @param keepAlive true to suspend the idle disconnect, false to restart its timer
+     */
+    public synchronized void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        if (keepAlive) {
+            handler.removeCallbacks(idleRunnable);
+        } else {
+            onActivity();
+        }
+    }
+
+    /**
+     * Postpone the idle disconnect, call on any traffic with the bot
+     */
+    public synchronized void onActivity() {
+        if (state != State.CONNECTED || idleTimeoutMs <= 0 || keepAlive) return;
+        handler.removeCallbacks(idleRunnable);
+        handler.postDelayed(idleRunnable, idleTimeoutMs);
+    }
+
+    public synchronized void onConnected() {
+        if (state != State.CONNECTING) return; // disconnected while connecting
+        Log.i(LOGTAG, "connected after " + (attempt + 1) + " attempt(s)");
+        state = State.CONNECTED;
+        attempt = 0;
+        onActivity();
+    }
+
+    /**
+     * @return true if a reconnect is scheduled, false if the attempts are exhausted
+     */
+    public synchronized boolean onConnectFailed() {
+        if (state != State.CONNECTING) return state == State.BACKOFF;
+        return scheduleReconnect();
+    }
+
+    /**
+     * @param retry false if reconnecting can't help, i.e. authentication errors
+     * @return true if a reconnect is scheduled or the connection was closed on purpose,
+     *         false if the connection is given up
+     */
+    public synchronized boolean onConnectionLost(boolean retry) {
+        handler.removeCallbacks(idleRunnable);
+        if (state == State.DISCONNECTED) return true;
+        if (state == State.BACKOFF) return true;
+        if (!retry) {
+            handler.removeCallbacks(reconnectRunnable);
+            state = State.DISCONNECTED;
+            attempt = 0;
+            return false;
+        }
+        if (state == State.CONNECTED) attempt = 0;
+        return scheduleReconnect();
+    }
+
+    private void startConnect() {
+        state = State.CONNECTING;
+        connector.connect();
+    }
+
+    private boolean scheduleReconnect() {
+        if (attempt >= MAX_RECONNECT_ATTEMPTS) {
+            Log.e(LOGTAG, "giving up after " + attempt + " reconnect attempts");
+            state = State.DISCONNECTED;
+            attempt = 0;
+            return false;
+        }
+
+        // equal jitter: half of the exponential delay is fixed, the other half is random
+        long delay = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << attempt);
+        delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+        attempt++;
+        state = State.BACKOFF;
+        Log.i(LOGTAG, "reconnect attempt " + attempt + " in " + delay + "ms");
+        handler.postDelayed(reconnectRunnable, delay);
+        return true;
+    }
+
+    private synchronized void reconnect() {
+        if (state != State.BACKOFF) return;
+        startConnect();
+    }
+
+    private synchronized void disconnectIdle() {
+        if (state != State.CONNECTED || keepAlive) return;
+        Log.i(LOGTAG, "idle for " + idleTimeoutMs + "ms, disconnecting");
+        state = State.DISCONNECTED;
+        connector.disconnect();
+    }
+}
@@ -0,0 +1,59 @@
+package com.microsoft.bot.builder.solutions.directlinespeech;
+
+import android.content.res.AssetManager;
+
+import com.microsoft.cognitiveservices.speech.KeywordRecognitionModel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Loads the keyword spotting models from the assets once and keeps them, so that restarting
+ * keyword recognition (service init, settings save, reconnect) doesn't read and parse the table again.
+ * Owned by the service, so the models outlive the SpeechSdk instances.
+ */
+public class KeywordModelManager {
+
+    // STATE
+    private final AssetManager assets;
+    private final Map<String, KeywordRecognitionModel> models = new HashMap<>(); // guarded by this, by keyword
+
+    public KeywordModelManager(AssetManager assets) {
+        this.assets = assets;
+    }
+
+    public static String getAssetPath(String keyword) {
+        return "keywords/" + keyword + "/kws.table";
+    }
+
+    /**
+     * @return the model of the keyword, loaded on first use
+     */
+    public synchronized KeywordRecognitionModel getModel(String keyword) throws IOException {
+        KeywordRecognitionModel model = models.get(keyword);
+        if (model == null) {
+            model = loadModel(keyword);
+            models.put(keyword, model);
+        }
+        return model;
+    }
+
+    /**
+     * Release the models, i.e. when the service is destroyed, once SpeechSdk.close() completed
+     */
+    public synchronized void close() {
+        for (KeywordRecognitionModel model : models.values()) {
+            model.close();
+        }
+        models.clear();
+    }
+
+    private KeywordRecognitionModel loadModel(String keyword) throws IOException {
+        // fromStream copies the table, reading it once per keyword is what the cache saves
+        try (InputStream stream = assets.open(getAssetPath(keyword))) {
+            return KeywordRecognitionModel.fromStream(stream, keyword, false);
+        }
+    }
+}
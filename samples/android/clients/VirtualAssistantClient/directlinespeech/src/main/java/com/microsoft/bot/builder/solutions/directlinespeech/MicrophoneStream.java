@@ -3,38 +3,234 @@ package com.microsoft.bot.builder.solutions.directlinespeech;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaRecorder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
 
 import com.microsoft.cognitiveservices.speech.audio.AudioStreamFormat;
 import com.microsoft.cognitiveservices.speech.audio.PullAudioInputStreamCallback;
 
+/**
+ * Always-recording microphone for AudioConfig.fromStreamInput.
+ * A capture thread records into a fixed ring buffer all the time. When the Speech SDK starts
+ * reading after being idle (i.e. on listenOnceAsync), the first read starts preRollMs in the past,
+ * so the first syllables spoken right at push-to-talk are part of the recognition.
+ * The capture thread records straight into the ring and read() copies straight out of it, there
+ * is no allocation after construction.
+ *
+ * An utterance started with startUtterance() is endpointed locally: the audio read is run through
+ * a VoiceActivityDetector, which reports the end of the speech. Optionally the leading silence is
+ * held back until speech starts, the pre-roll before it is still delivered.
+ */
 public class MicrophoneStream extends PullAudioInputStreamCallback {
 
     // CONSTANTS
+    private static final String LOGTAG = "MicrophoneStream";
     private final static int SAMPLE_RATE = 16000;
+    private static final int BYTES_PER_MS = SAMPLE_RATE * 2 / 1000;
+    private static final int CAPTURE_CHUNK_BYTES = 20 * BYTES_PER_MS;
+    private static final int READER_SLACK_MS = 1500; // how far the reader may fall behind before audio is dropped
+    private static final long READER_IDLE_MS = 250; // a read after this long starts a new utterance
 
     // STATE
     private final AudioStreamFormat format;
     private AudioRecord recorder;
+    private final Object lock = new Object();
+    private final byte[] ring;
+    private final int preRollBytes;
+    private long writePosition; // guarded by lock, total bytes captured
+    private long readPosition; // guarded by lock, total bytes read or skipped
+    private long lastReadTime; // guarded by lock
+    private long droppedBytes; // guarded by lock, skipped because the reader fell behind
+    private volatile boolean closed;
+    private VoiceActivityDetector detector; // guarded by lock, null if the utterance isn't endpointed
+    private EndpointListener endpointListener; // guarded by lock
+    private boolean gateLeadingSilence; // guarded by lock
+    private boolean utteranceStarting; // guarded by lock
+    private long analysisPosition; // guarded by lock, audio up to here went through the detector
+
+    public interface EndpointListener {
+        /**
+         * Called on the reading thread
+         * @param speechDetected false if no speech came in time
+         */
+        void onEndOfUtterance(boolean speechDetected);
+    }
 
     public MicrophoneStream() {
+        this(0);
+    }
+
+    /**
+     * @param preRollMs audio recorded before the Speech SDK starts reading, included in its first read
+     */
+    public MicrophoneStream(int preRollMs) {
         this.format = AudioStreamFormat.getWaveFormatPCM(SAMPLE_RATE, (short)16, (short)1);
+        this.preRollBytes = Math.max(0, preRollMs) * BYTES_PER_MS;
+        int ringChunks = (preRollBytes + READER_SLACK_MS * BYTES_PER_MS) / CAPTURE_CHUNK_BYTES + 1;
+        this.ring = new byte[ringChunks * CAPTURE_CHUNK_BYTES];
         this.initMic();
+        new Thread(this::runCapture, LOGTAG).start();
     }
 
     public AudioStreamFormat getFormat() {
         return this.format;
     }
 
+    /**
+     * Endpoint the next utterance, call it right before the recognition starts
+     * @param detector reset and then fed with the audio of the utterance
+     * @param gateLeadingSilence hold the audio back until speech starts
+     */
+    public void startUtterance(VoiceActivityDetector detector, boolean gateLeadingSilence, EndpointListener listener) {
+        synchronized (lock) {
+            detector.reset();
+            this.detector = detector;
+            this.gateLeadingSilence = gateLeadingSilence;
+            this.endpointListener = listener;
+            this.utteranceStarting = true;
+        }
+    }
+
+    /**
+     * Stop endpointing, i.e. the recognition ended on its own
+     */
+    public void endUtterance() {
+        synchronized (lock) {
+            detector = null;
+            endpointListener = null;
+            utteranceStarting = false;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until audio is available
+     * @return number of bytes read, 0 once closed
+     */
     @Override
     public int read(byte[] bytes) {
-        long ret = this.recorder.read(bytes, 0, bytes.length);
-        return (int)ret;
+        synchronized (lock) {
+            long now = SystemClock.elapsedRealtime();
+            if (now - lastReadTime > READER_IDLE_MS) {
+                // a new utterance, start with the pre-roll instead of the stale audio
+                readPosition = Math.max(readPosition, writePosition - preRollBytes);
+            }
+            if (utteranceStarting) {
+                analysisPosition = readPosition;
+                utteranceStarting = false;
+            }
+            while (detector != null && gateLeadingSilence && !detector.isSpeechStarted() && !closed) {
+                // analyze ahead of the reader, keeping only the pre-roll before the speech
+                if (writePosition == analysisPosition) {
+                    if (!await()) return 0;
+                    continue;
+                }
+                analyze(writePosition);
+                readPosition = Math.max(readPosition, analysisPosition - preRollBytes);
+            }
+            while (readPosition == writePosition && !closed) {
+                if (!await()) return 0;
+            }
+            if (closed) return 0;
+
+            int size = (int) Math.min(bytes.length, writePosition - readPosition);
+            int offset = (int) (readPosition % ring.length);
+            int first = Math.min(size, ring.length - offset);
+            System.arraycopy(ring, offset, bytes, 0, first);
+            System.arraycopy(ring, 0, bytes, first, size - first);
+            readPosition += size;
+            if (detector != null && readPosition > analysisPosition) analyze(readPosition);
+            lastReadTime = SystemClock.elapsedRealtime();
+            return size;
+        }
+    }
+
+    // waits for the capture thread, returns false if interrupted
+    private boolean await() {
+        try {
+            lock.wait();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // runs the audio up to end through the detector, reports the end of the utterance
+    private void analyze(long end) {
+        // skip what the capture thread already overwrote
+        long position = Math.max(analysisPosition, writePosition + CAPTURE_CHUNK_BYTES - ring.length);
+        while (position < end) {
+            int offset = (int) (position % ring.length);
+            int length = (int) Math.min(end - position, ring.length - offset);
+            detector.process(ring, offset, length);
+            position += length;
+        }
+        analysisPosition = end;
+
+        if (detector.isEndOfUtterance()) {
+            boolean speechDetected = detector.isSpeechStarted();
+            Log.i(LOGTAG, "end of utterance, speech: " + detector.getSpeechMs() + "ms");
+            EndpointListener listener = endpointListener;
+            detector = null;
+            endpointListener = null;
+            if (listener != null) listener.onEndOfUtterance(speechDetected);
+        }
     }
 
     @Override
     public void close() {
-        this.recorder.release();
-        this.recorder = null;
+        if (closed) return;
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+            Log.i(LOGTAG, "closed, dropped " + droppedBytes / BYTES_PER_MS + "ms of audio");
+        }
+        try {
+            // unblocks the capture thread, which then releases the recorder
+            this.recorder.stop();
+        } catch (IllegalStateException e) {
+            Log.e(LOGTAG, "stop failed: " + e.getMessage());
+        }
+    }
+
+    private void runCapture() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        try {
+            while (!closed) {
+                int offset;
+                int length;
+                synchronized (lock) {
+                    // the chunk about to be recorded must not be readable anymore
+                    long overrun = writePosition + CAPTURE_CHUNK_BYTES - ring.length - readPosition;
+                    if (overrun > 0) {
+                        readPosition += overrun;
+                        // only a loss if the reader is active, an idle reader skips to the pre-roll anyway
+                        if (SystemClock.elapsedRealtime() - lastReadTime <= READER_IDLE_MS) droppedBytes += overrun;
+                    }
+                    offset = (int) (writePosition % ring.length);
+                    length = Math.min(CAPTURE_CHUNK_BYTES, ring.length - offset); // after a short read
+                }
+
+                int size = this.recorder.read(ring, offset, length);
+                if (size < 0) {
+                    if (!closed) Log.e(LOGTAG, "recording failed: " + size);
+                    break;
+                }
+
+                synchronized (lock) {
+                    writePosition += size;
+                    lock.notifyAll();
+                }
+            }
+        } finally {
+            this.recorder.release();
+            synchronized (lock) {
+                closed = true;
+                lock.notifyAll();
+            }
+        }
     }
 
     private void initMic() {
@@ -0,0 +1,212 @@
+package com.microsoft.bot.builder.solutions.directlinespeech;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes an MP3 TTS stream to PCM as it arrives, frame by frame, with the platform MediaCodec.
+ * The compressed bytes are split into frames by their headers, so decoding starts with the first
+ * frame and never needs the whole utterance. Bytes that are not part of a frame (i.e. tags) are skipped.
+ * Only mono output at Synthesizer.SAMPLE_RATE is expected, the service returns what was requested.
+ */
+public class Mp3StreamDecoder implements AudioSource {
+
+    // CONSTANTS
+    private static final String LOGTAG = "Mp3StreamDecoder";
+    private static final String MIME_TYPE = MediaFormat.MIMETYPE_AUDIO_MPEG;
+    private static final long DEQUEUE_TIMEOUT_US = 10 * 1000;
+    private static final int HEADER_SIZE = 4;
+    private static final int MAX_FRAME_SIZE = 1441; // layer III at 320kbps and 32kHz, padded
+    private static final int[] SAMPLE_RATES = {44100, 48000, 32000}; // MPEG1, halved for MPEG2, quartered for MPEG2.5
+    private static final int[] BITRATES_V1 = {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320}; // kbps, layer III
+    private static final int[] BITRATES_V2 = {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160};
+
+    // STATE
+    private final AudioSource source;
+    private final byte[] readBuffer = new byte[4 * 1024];
+    private final byte[] input = new byte[readBuffer.length + MAX_FRAME_SIZE]; // compressed bytes not queued yet
+    private int inputStart;
+    private int inputEnd;
+    private boolean sourceEnded;
+    private boolean inputEnded;
+    private boolean outputEnded;
+    private boolean failed; // decoding failed, the output ended early
+    private MediaCodec codec;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private ByteBuffer output; // decoded PCM not read yet
+    private int outputIndex = -1;
+
+    public Mp3StreamDecoder(AudioSource source) {
+        this.source = source;
+    }
+
+    /**
+     * @param outputFormat format requested from the service, i.e. "audio-16khz-32kbitrate-mono-mp3"
+     */
+    public static boolean isMp3(String outputFormat) {
+        return outputFormat != null && outputFormat.endsWith("-mp3");
+    }
+
+    @Override
+    public long read(byte[] buffer) {
+        try {
+            while (true) {
+                if (output != null) {
+                    int size = Math.min(buffer.length, output.remaining());
+                    output.get(buffer, 0, size);
+                    if (!output.hasRemaining()) {
+                        codec.releaseOutputBuffer(outputIndex, false);
+                        output = null;
+                        outputIndex = -1;
+                    }
+                    return size;
+                }
+                if (outputEnded) {
+                    close();
+                    return 0;
+                }
+                if (!inputEnded) queueFrame();
+                if (codec == null) {
+                    // the source ended before a single frame
+                    outputEnded = true;
+                    continue;
+                }
+                dequeueOutput();
+            }
+        } catch (IOException | IllegalStateException e) {
+            Log.e(LOGTAG, "decoding failed: " + e.getMessage());
+            failed = true;
+            close();
+            return 0;
+        }
+    }
+
+    @Override
+    public boolean isTruncated() {
+        return failed || source.isTruncated();
+    }
+
+    @Override
+    public void close() {
+        source.close();
+        if (codec == null) return;
+        try {
+            codec.stop();
+        } catch (IllegalStateException e) {
+            Log.e(LOGTAG, "stop failed: " + e.getMessage());
+        }
+        codec.release();
+        codec = null;
+        output = null;
+        outputEnded = true;
+    }
+
+    // queues the next frame, or the end of the stream, if the codec has an input buffer available
+    private void queueFrame() throws IOException {
+        int frameSize = nextFrame();
+        if (codec == null && frameSize > 0) createCodec();
+        if (codec == null) {
+            inputEnded = true;
+            return;
+        }
+
+        int index = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+        if (index < 0) return; // the codec is full, the frame is queued with the next call
+
+        if (frameSize <= 0) {
+            codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            inputEnded = true;
+            return;
+        }
+        ByteBuffer codecInput = codec.getInputBuffer(index);
+        codecInput.clear();
+        codecInput.put(input, inputStart, frameSize);
+        codec.queueInputBuffer(index, 0, frameSize, 0, 0);
+        inputStart += frameSize;
+    }
+
+    private void dequeueOutput() {
+        int index = codec.dequeueOutputBuffer(bufferInfo, DEQUEUE_TIMEOUT_US);
+        if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+            MediaFormat format = codec.getOutputFormat();
+            Log.d(LOGTAG, "output format: " + format);
+            return;
+        }
+        if (index < 0) return;
+
+        if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) outputEnded = true;
+        if (bufferInfo.size == 0) {
+            codec.releaseOutputBuffer(index, false);
+            return;
+        }
+        output = codec.getOutputBuffer(index);
+        output.position(bufferInfo.offset);
+        output.limit(bufferInfo.offset + bufferInfo.size);
+        outputIndex = index;
+    }
+
+    /**
+     * Reads from the source until a whole frame is buffered at inputStart
+     * @return size of the frame, 0 at the end of the source
+     */
+    private int nextFrame() {
+        while (true) {
+            // skip to the next frame header
+            int frameSize = 0;
+            while (inputEnd - inputStart >= HEADER_SIZE && (frameSize = frameSize(input, inputStart)) == 0) inputStart++;
+            if (frameSize > 0 && inputEnd - inputStart >= frameSize) return frameSize;
+            if (sourceEnded) return 0;
+
+            // compact and read more
+            System.arraycopy(input, inputStart, input, 0, inputEnd - inputStart);
+            inputEnd -= inputStart;
+            inputStart = 0;
+            long size = source.read(readBuffer);
+            if (size <= 0) {
+                sourceEnded = true;
+                continue;
+            }
+            // the unconsumed part never exceeds a frame, so the read always fits
+            System.arraycopy(readBuffer, 0, input, inputEnd, (int) size);
+            inputEnd += size;
+        }
+    }
+
+    private void createCodec() throws IOException {
+        int header = ((input[inputStart + 1] & 0xFF) << 8) | (input[inputStart + 2] & 0xFF);
+        int channels = ((input[inputStart + 3] & 0xC0) >> 6) == 3 ? 1 : 2;
+        MediaFormat format = MediaFormat.createAudioFormat(MIME_TYPE, sampleRate(header), channels);
+        codec = MediaCodec.createDecoderByType(MIME_TYPE);
+        codec.configure(format, null, null, 0);
+        codec.start();
+    }
+
+    // bits 19-20 of the header: 3 MPEG1, 2 MPEG2, 0 MPEG2.5
+    private static int sampleRate(int header) {
+        int version = (header >> 11) & 0x3;
+        int rate = SAMPLE_RATES[(header >> 2) & 0x3];
+        return version == 3 ? rate : version == 2 ? rate / 2 : rate / 4;
+    }
+
+    /**
+     * @return size of the layer III frame starting at offset, 0 if there is no valid header
+     */
+    static int frameSize(byte[] data, int offset) {
+        if ((data[offset] & 0xFF) != 0xFF || (data[offset + 1] & 0xE0) != 0xE0) return 0;
+        int header = ((data[offset + 1] & 0xFF) << 8) | (data[offset + 2] & 0xFF);
+        int version = (header >> 11) & 0x3;
+        int layer = (header >> 9) & 0x3;
+        int bitrateIndex = (header >> 4) & 0xF;
+        int sampleRateIndex = (header >> 2) & 0x3;
+        int padding = (header >> 1) & 0x1;
+        if (version == 1 || layer != 1 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) return 0;
+
+        int bitrate = (version == 3 ? BITRATES_V1 : BITRATES_V2)[bitrateIndex] * 1000;
+        int samplesPerFrame = version == 3 ? 1152 : 576;
+        return samplesPerFrame / 8 * bitrate / sampleRate(header) + padding;
+    }
+}
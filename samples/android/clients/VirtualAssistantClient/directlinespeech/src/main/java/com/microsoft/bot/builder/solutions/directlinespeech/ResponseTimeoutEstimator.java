@@ -0,0 +1,123 @@
+package com.microsoft.bot.builder.solutions.directlinespeech;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Derives the response timeout from the observed round-trip times, the same way TCP derives its
+ * retransmission timeout: timeout = srtt + 4 * rttvar, where srtt and rttvar are EWMAs of the
+ * round-trip time and of its deviation. With roughly normal round trips this sits above the 99th
+ * percentile. The timeout is bounded by the configured minimum and maximum.
+ *
+ * Round trips are learned per request type (voice or typed) and per intent. The bot's intent isn't
+ * known before the reply, so the first words of the utterance stand in for it. An intent only
+ * gets its own timeout after MIN_INTENT_SAMPLES, until then the type's timeout is used.
+ * A timeout doubles the next timeout of the same key until a response is observed again.
+ */
+public class ResponseTimeoutEstimator {
+
+    // CONSTANTS
+    private static final double ALPHA = 1.0 / 8; // srtt gain
+    private static final double BETA = 1.0 / 4;  // rttvar gain
+    private static final int K = 4;
+    private static final int MIN_INTENT_SAMPLES = 3;
+    private static final int MAX_INTENTS = 64;
+    private static final int INTENT_WORDS = 2;
+
+    // STATE
+    private final long minTimeoutMs;
+    private final long maxTimeoutMs;
+    private final long initialTimeoutMs;
+    private final Map<String, Estimate> types = new LinkedHashMap<>();
+    private final Map<String, Estimate> intents = new LinkedHashMap<String, Estimate>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Estimate> eldest) {
+            return size() > MAX_INTENTS;
+        }
+    };
+
+    private static class Estimate {
+        double srtt;
+        double rttvar;
+        int samples;
+        int backoff; // number of timeouts since the last response
+
+        void addSample(long rttMs) {
+            if (samples == 0) {
+                srtt = rttMs;
+                rttvar = rttMs / 2.0;
+            } else {
+                rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rttMs);
+                srtt = (1 - ALPHA) * srtt + ALPHA * rttMs;
+            }
+            samples++;
+            backoff = 0;
+        }
+    }
+
+    /**
+     * @param initialTimeoutMs used until a round trip is observed
+     */
+    public ResponseTimeoutEstimator(long minTimeoutMs, long maxTimeoutMs, long initialTimeoutMs) {
+        this.minTimeoutMs = minTimeoutMs;
+        this.maxTimeoutMs = Math.max(minTimeoutMs, maxTimeoutMs);
+        this.initialTimeoutMs = initialTimeoutMs;
+    }
+
+    /**
+     * @param type request type, i.e. "voice" or "message"
+     * @param utterance what the user said or typed, may be null
+     */
+    public synchronized long getTimeoutMs(String type, String utterance) {
+        Estimate intent = intents.get(intentKey(type, utterance));
+        Estimate estimate = intent != null && intent.samples >= MIN_INTENT_SAMPLES ? intent : types.get(type);
+
+        double timeout = initialTimeoutMs;
+        int backoff = 0;
+        if (estimate != null && estimate.samples > 0) {
+            timeout = estimate.srtt + K * estimate.rttvar;
+            backoff = estimate.backoff;
+        }
+        timeout *= 1 << Math.min(backoff, 10);
+        return Math.max(minTimeoutMs, Math.min(maxTimeoutMs, (long) timeout));
+    }
+
+    /**
+     * @param rttMs time from the request to the response
+     */
+    public synchronized void addSample(String type, String utterance, long rttMs) {
+        estimate(types, type).addSample(rttMs);
+        estimate(intents, intentKey(type, utterance)).addSample(rttMs);
+    }
+
+    /**
+     * No response came in time, back off the next timeout
+     */
+    public synchronized void onTimeout(String type, String utterance) {
+        estimate(types, type).backoff++;
+        estimate(intents, intentKey(type, utterance)).backoff++;
+    }
+
+    private static Estimate estimate(Map<String, Estimate> estimates, String key) {
+        Estimate estimate = estimates.get(key);
+        if (estimate == null) {
+            estimate = new Estimate();
+            estimates.put(key, estimate);
+        }
+        return estimate;
+    }
+
+    // the first words of the utterance, lower case and without punctuation
+    private static String intentKey(String type, String utterance) {
+        StringBuilder key = new StringBuilder(type).append(':');
+        if (utterance == null) return key.toString();
+
+        String[] words = utterance.toLowerCase(Locale.US).replaceAll("[^\\p{L}\\p{N}\\s]", "").trim().split("\\s+");
+        for (int i = 0; i < Math.min(INTENT_WORDS, words.length); i++) {
+            if (i > 0) key.append(' ');
+            key.append(words[i]);
+        }
+        return key.toString();
+    }
+}
@@ -2,11 +2,13 @@ package com.microsoft.bot.builder.solutions.directlinespeech;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.gson.Gson;
 import com.microsoft.bot.builder.solutions.directlinespeech.model.Configuration;
 import com.microsoft.bot.builder.solutions.directlinespeech.utils.DateUtils;
+import com.microsoft.bot.builder.solutions.directlinespeech.utils.FileLogger;
 import com.microsoft.cognitiveservices.speech.KeywordRecognitionModel;
 import com.microsoft.cognitiveservices.speech.PropertyId;
 import com.microsoft.cognitiveservices.speech.ServicePropertyChannel;
@@ -19,19 +21,22 @@ import com.microsoft.cognitiveservices.speech.dialog.CustomCommandsConfig;
 import com.microsoft.cognitiveservices.speech.dialog.DialogServiceConfig;
 import com.microsoft.cognitiveservices.speech.dialog.DialogServiceConnector;
 
-import org.greenrobot.eventbus.EventBus;
-
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.TimeZone;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import client.model.ActivityTypes;
 import client.model.CardAction;
@@ -40,9 +45,11 @@ import events.ActivityReceived;
 import events.BotListening;
 import events.Connected;
 import events.Disconnected;
+import events.EventDispatcher;
 import events.GpsLocationSent;
 import events.Recognized;
 import events.RecognizedIntermediateResult;
+import events.Reconnecting;
 import events.RequestTimeout;
 
 import static com.microsoft.cognitiveservices.speech.ResultReason.RecognizedKeyword;
@@ -54,33 +61,64 @@ public class SpeechSdk {
     private static final String LOGTAG = "SpeechSdk";
     public static final String SPEECHSDKLOGFILENAME = "SpeechSdk.log";
     public static final String APPLOGFILENAME = "app.log";
-    private final int RESPONSE_TIMEOUT_PERIOD_MS = 15 * 1000;
+    private static final long RESPONSE_TIMEOUT_INITIAL_MS = 15 * 1000; // until round trips are observed
+    private static final String REQUEST_TYPE_VOICE = "voice";
+    private static final String REQUEST_TYPE_MESSAGE = "message";
+    private static final String TTS_OUTPUT_FORMAT_PCM = "raw-16khz-16bit-mono-pcm"; // what the Synthesizer plays
+    private static final long TASK_TIMEOUT_PERIOD_MS = 30 * 1000;
+    private static final long LISTEN_TASK_TIMEOUT_PERIOD_MS = 60 * 1000;
 
     // STATE
     private MicrophoneStream microphoneStream;
+    private VoiceActivityDetector voiceActivityDetector; // null if local endpointing is disabled
+    private final Object keywordLock = new Object();
+    private KeywordRecognitionModel keywordModel; // null if keyword recognition is stopped, guarded by keywordLock
+    private KeywordRecognitionModel pendingKeywordModel; // being started, guarded by keywordLock
+    private KeywordRecognitionModel armedKeywordModel; // requested by the app until stopped, re-armed on reconnect, guarded by keywordLock
     private DialogServiceConnector botConnector;
+    private volatile Future<Void> disconnectTask; // the last disconnect, null if never disconnected
     private Synthesizer synthesizer;
     private Gson gson;
+    private ActivityJsonReader activityJsonReader;
+    private TtsAudioCache ttsAudioCache;
+    private volatile boolean decodeTtsOutput; // true if the service sends MP3
+    private final AtomicInteger canceledCount = new AtomicInteger(); // canceled events, a TTS stream ending after one may be truncated
     private ChannelAccount from_user;
     private String localSpeechSdkLogPath;
     private String localAppLogFilePath;
     private String localLogDirectory;
-    private boolean isConnected;
+    private ConnectionManager connectionManager;
     private byte[] audioBuffer;
     private Configuration configuration;
     private Handler handler;
     private Runnable timeoutResponseRunnable;
+    private ResponseTimeoutEstimator responseTimeoutEstimator;
+    private volatile PendingResponse pendingResponse; // request waiting for its response, null if none
     private ArrayList<CardAction> suggestedActions;
     private String dateSentLocationEvent;
+    private final TaskCompletionAdapter taskCompletionAdapter = new TaskCompletionAdapter();
+    private final TurnLatencyTracker latencyTracker = TurnLatencyTracker.getDefault();
+    private ActivitySendQueue sendQueue;
+    private ActivityOutbox outbox;
+    private final Set<String> replayingIds = ConcurrentHashMap.newKeySet();
+    private final Map<String, OnTaskCompletedListener<String>> outboxListeners = new ConcurrentHashMap<>(); // by outbox id
 
     private File localSpeechSdkLogFile;
-    private File localAppLogFile;
-    private FileWriter streamWriter;
+    private FileLogger appLogger;
 
     public void initialize(Configuration configuration, boolean haveRecordAudioPermission, String localLogFileDirectory){
+        initialize(configuration, haveRecordAudioPermission, localLogFileDirectory, localLogFileDirectory);
+    }
+
+    /**
+     * @param localLogFileDirectory directory of the app and Speech SDK log files
+     * @param dataDirectory directory of the outbox and the TTS cache, i.e. the app's files dir
+     */
+    public void initialize(Configuration configuration, boolean haveRecordAudioPermission, String localLogFileDirectory, String dataDirectory){
         audioBuffer = new byte[1024 * 2];
         suggestedActions = new ArrayList<>();
         gson = new Gson();
+        activityJsonReader = new ActivityJsonReader(gson);
         this.configuration = configuration;
         synthesizer = new Synthesizer();
         //locale = Locale.getDefault().toString();
@@ -92,45 +130,64 @@ public class SpeechSdk {
         this.localLogDirectory = localLogFileDirectory;
         localSpeechSdkLogFile = new File(localSpeechSdkLogPath);
         intializeAppLogFile();
+        responseTimeoutEstimator = new ResponseTimeoutEstimator(
+                configuration.responseTimeoutMinSeconds * 1000L,
+                configuration.responseTimeoutMaxSeconds * 1000L,
+                RESPONSE_TIMEOUT_INITIAL_MS);
+        latencyTracker.setDumpFile(new File(localLogFileDirectory, TurnLatencyTracker.DUMPFILENAME));
+        if (configuration.vadEndOfSpeechSilenceMs > 0) {
+            voiceActivityDetector = new VoiceActivityDetector(
+                    configuration.vadEnergyThresholdDb,
+                    configuration.vadZeroCrossingRateThreshold,
+                    configuration.vadEndOfSpeechSilenceMs);
+        }
         initializeSpeech(configuration, haveRecordAudioPermission);
         handler = new Handler(Looper.getMainLooper());
+        sendQueue = new ActivitySendQueue(handler);
+        outbox = new ActivityOutbox(dataDirectory);
+        ttsAudioCache = new TtsAudioCache(dataDirectory);
+        connectionManager = new ConnectionManager(handler, new ConnectionManager.Connector() {
+            @Override
+            public void connect() {
+                startConnect();
+            }
+
+            @Override
+            public void disconnect() {
+                clearKeywordModel();
+                disconnectTask = botConnector.disconnectAsync();
+            }
+        }, configuration.connectionIdleTimeoutSeconds * 1000L);
         if (configuration.currentTimezone != null) sendTimeZoneEvent(TimeZone.getTimeZone(configuration.currentTimezone));//only do this once per session
     }
 
     private void intializeAppLogFile() {
-        localAppLogFile = new File(localAppLogFilePath);
-        try {
-            streamWriter = new FileWriter(localAppLogFile);
-        }catch(IOException e)
-        {
-            Log.e(LOGTAG, e.getMessage());
-        }
+        // the log file is appended to and rotated by size, it is written on a background thread
+        appLogger = FileLogger.forFile(new File(localAppLogFilePath));
+        appLogger.setLevel(configuration.speechSdkLogEnabled ? Log.DEBUG : Log.INFO);
     }
 
-    private void LogException(String message){
-        Log.e(LOGTAG, message);
-        LogToFile(message);
+    // NOTE: the message is only used as a format pattern if args are given, it is only formatted
+    //       for logcat if the level is enabled for LOGTAG (i.e. setprop log.tag.SpeechSdk DEBUG),
+    //       the app log file formats it later on its own thread
+    private void LogException(String message, Object... args){
+        Log.e(LOGTAG, formatLogMessage(message, args));
+        appLogger.log(Log.ERROR, message, args);
     }
 
-    private void LogDebug(String message){
-        Log.d(LOGTAG, message);
-        LogToFile(message);
+    private void LogDebug(String message, Object... args){
+        if (Log.isLoggable(LOGTAG, Log.DEBUG)) Log.d(LOGTAG, formatLogMessage(message, args));
+        appLogger.log(Log.DEBUG, message, args);
     }
 
-    private void LogInfo(String message){
-        Log.i(LOGTAG, message);
-        LogToFile(message);
+    private void LogInfo(String message, Object... args){
+        if (Log.isLoggable(LOGTAG, Log.INFO)) Log.i(LOGTAG, formatLogMessage(message, args));
+        appLogger.log(Log.INFO, message, args);
     }
 
-    private void LogToFile(String message){
-        if (localAppLogFile != null){
-            try {
-                streamWriter.write(message +"\n");
-                streamWriter.flush();
-            }catch(IOException e){
-                Log.e(LOGTAG, e.getMessage());
-            }
-        }
+    private static String formatLogMessage(String message, Object... args){
+        if (args.length == 0) return message;
+        return String.format(Locale.US, message, args);
     }
 
     private void logLongInfoMessage(String tag, String message){
@@ -149,7 +206,12 @@ public class SpeechSdk {
 
     private void initializeSpeech(Configuration configuration, boolean haveRecordAudioPermission){
         AudioConfig audioInput = null;
-        if (haveRecordAudioPermission) audioInput = AudioConfig.fromDefaultMicrophoneInput();//AudioConfig.fromStreamInput(createMicrophoneStream());
+        if (haveRecordAudioPermission) {
+            // the SDK's own microphone input is needed for USB mic arrays, which don't get a pre-roll
+            audioInput = configuration.microphonePreRollMs > 0
+                    ? AudioConfig.fromStreamInput(createMicrophoneStream())
+                    : AudioConfig.fromDefaultMicrophoneInput();
+        }
 
         DialogServiceConfig dialogServiceConfig = createDialogServiceConfiguration();
 
@@ -165,47 +227,68 @@ public class SpeechSdk {
 
             if (speechRecognitionResultEventArgs.getResult().getReason().equals(RecognizingKeyword)) {
                 // show listening animation when keyword is recognized
-                EventBus.getDefault().post(new BotListening());
+                EventDispatcher.getDefault().post(new BotListening());
+                // the user is about to talk, get the connection ready
+                connectionManager.connect("keyword");
+                latencyTracker.startVoiceTurn();
+            } else {
+                connectionManager.onActivity();
+                latencyTracker.mark(TurnLatencyTracker.Stage.FIRST_PARTIAL);
             }
 
-            LogInfo("Intermediate result received: " + recognizedSpeech);
+            LogInfo("Intermediate result received: %s", recognizedSpeech);
 
             // trigger callback to expose result in 3rd party app
-            EventBus.getDefault().post(new RecognizedIntermediateResult(recognizedSpeech));
+            EventDispatcher.getDefault().post(new RecognizedIntermediateResult(recognizedSpeech));
         });
 
         botConnector.recognized.addEventListener((o, speechRecognitionResultEventArgs) -> {
             final String recognizedSpeech = speechRecognitionResultEventArgs.getResult().getText();
-            LogInfo("Final result received: " + recognizedSpeech);
+            LogInfo("Final result received: %s", recognizedSpeech);
 
             if (!speechRecognitionResultEventArgs.getResult().getReason().equals(RecognizedKeyword)) {
+                // the service endpointed the utterance first
+                if (microphoneStream != null) microphoneStream.endUtterance();
+                latencyTracker.mark(TurnLatencyTracker.Stage.FINAL_RESULT);
                 // trigger callback to expose result in 3rd party app
-                EventBus.getDefault().post(new Recognized(recognizedSpeech));
+                EventDispatcher.getDefault().post(new Recognized(recognizedSpeech));
             }
 
-            startResponseTimeoutTimer();
+            startResponseTimeoutTimer(REQUEST_TYPE_VOICE, recognizedSpeech);
         });
 
         botConnector.sessionStarted.addEventListener((o, sessionEventArgs) -> {
-            LogInfo("got a session (" + sessionEventArgs.getSessionId() + ") event: sessionStarted");
+            LogInfo("got a session (%s) event: sessionStarted", sessionEventArgs.getSessionId());
         });
 
         botConnector.sessionStopped.addEventListener((o, sessionEventArgs) -> {
-            LogInfo("got a session (" + sessionEventArgs.getSessionId() + ") event: sessionStopped");
+            LogInfo("got a session (%s) event: sessionStopped", sessionEventArgs.getSessionId());
         });
 
         botConnector.canceled.addEventListener((Object o, SpeechRecognitionCanceledEventArgs canceledEventArgs) -> {
             // cancel reponse timeout timer ASAP
             cancelResponseTimeoutTimer();
+            canceledCount.incrementAndGet();
 
             final int errCode = canceledEventArgs.getErrorCode().getValue();
-            LogInfo("canceled with error code: "+ errCode +" ,also: "+ canceledEventArgs.getErrorDetails());
+            LogInfo("canceled with error code: %d ,also: %s", errCode, canceledEventArgs.getErrorDetails());
 
             switch (errCode) {
                 case 5:// this is Connection was closed by the remote host. Error code: 1011. Error details: Unable to read data from the transport connection: Connection reset by peer
                 case 1:// this is the authentication error (401) when using wrong certificate
-                    isConnected = false;
-                    EventBus.getDefault().post(new Disconnected(canceledEventArgs.getReason().getValue(), canceledEventArgs.getErrorDetails(), errCode));
+                    // reconnecting doesn't help with authentication errors
+                    clearKeywordModel();
+                    if (connectionManager.onConnectionLost(errCode == 5)) {
+                        ConnectionManager.State state = connectionManager.getState();
+                        LogInfo("connection lost, state: %s", state);
+                        if (state == ConnectionManager.State.BACKOFF) {
+                            // the suggested actions belong to the dropped conversation
+                            clearSuggestedActions();
+                            EventDispatcher.getDefault().post(new Reconnecting(errCode, canceledEventArgs.getErrorDetails()));
+                        }
+                    } else {
+                        EventDispatcher.getDefault().post(new Disconnected(canceledEventArgs.getReason().getValue(), canceledEventArgs.getErrorDetails(), errCode));
+                    }
                     break;
             }
 
@@ -213,20 +296,51 @@ public class SpeechSdk {
 
         botConnector.activityReceived.addEventListener((o, activityEventArgs) -> {
             final String json = activityEventArgs.getActivity();
-            logLongInfoMessage(LOGTAG, "received activity: " + json);
+            connectionManager.onActivity();
+            // the full payload can be hundreds of KB on card-heavy turns, only log it when asked to
+            if (configuration.speechSdkLogEnabled) logLongInfoMessage(LOGTAG, "received activity: " + json);
+
+            // attachments, entities and channelData are decoded only when first accessed
+            client.model.BotConnectorActivity botConnectorActivity = activityJsonReader.read(json);
 
             if (activityEventArgs.hasAudio()) {
                 // cancel response timeout timer
                 // note: located here because a lot of activity events are received,
                 //       by putting it here, only one event (with speech) cancels the timer.
-                cancelResponseTimeoutTimer();
+                onResponseReceived();
 
                 LogInfo("Activity Has Audio");
-                PullAudioOutputStream outputStream = activityEventArgs.getAudio();
-                synthesizer.playStream(outputStream);
+                String cacheKey = ttsAudioCache == null || botConnectorActivity == null ? null : TtsAudioCache.getKey(
+                        botConnectorActivity.getSpeak(),
+                        botConnectorActivity.getLocale() == null ? configuration.srLanguage : botConnectorActivity.getLocale(),
+                        configuration.customVoiceDeploymentIds);
+                // memory only here, the disk tier is read by the Synthesizer thread
+                byte[] cachedAudio = ttsAudioCache == null ? null : ttsAudioCache.get(cacheKey);
+                if (cachedAudio != null) {
+                    // the service stream is left unread, the SDK releases it with the activity
+                    synthesizer.playAudio(cachedAudio);
+                } else {
+                    PullAudioOutputStream outputStream = activityEventArgs.getAudio();
+                    final int canceledCountAtStart = canceledCount.get();
+                    AudioSource source = new AudioSource() {
+                        @Override
+                        public long read(byte[] buffer) {
+                            return outputStream.read(buffer);
+                        }
+
+                        @Override
+                        public boolean isTruncated() {
+                            // the SDK ends the stream the same way when the turn is canceled
+                            return canceledCount.get() != canceledCountAtStart;
+                        }
+                    };
+                    // decoded before the cache, so that the cache and the Synthesizer only deal with PCM
+                    if (decodeTtsOutput) source = new Mp3StreamDecoder(source);
+                    synthesizer.playStream(ttsAudioCache == null ? source : ttsAudioCache.open(cacheKey, source));
+                }
             }
 
-            activityReceived(json);
+            activityReceived(botConnectorActivity);
         });
     }
 
@@ -250,6 +364,12 @@ public class SpeechSdk {
         if (!(configuration.customVoiceDeploymentIds == null || configuration.customVoiceDeploymentIds.isEmpty())) {
             dialogServiceConfig.setProperty(PropertyId.Conversation_Custom_Voice_Deployment_Ids, configuration.customVoiceDeploymentIds);
         }
+        decodeTtsOutput = Mp3StreamDecoder.isMp3(configuration.ttsOutputFormat);
+        if (decodeTtsOutput) {
+            dialogServiceConfig.setProperty(PropertyId.SpeechServiceConnection_SynthOutputFormat, configuration.ttsOutputFormat);
+        } else if (!(configuration.ttsOutputFormat == null || configuration.ttsOutputFormat.isEmpty() || configuration.ttsOutputFormat.equals(TTS_OUTPUT_FORMAT_PCM))) {
+            LogException("unsupported TTS output format %s, using %s", configuration.ttsOutputFormat, TTS_OUTPUT_FORMAT_PCM);
+        }
         if (!(configuration.customSREndpointId == null || configuration.customSREndpointId.isEmpty())) {
             dialogServiceConfig.setServiceProperty("cid", configuration.customSREndpointId, ServicePropertyChannel.UriQueryParameter);
         }
@@ -267,9 +387,13 @@ public class SpeechSdk {
     public void activityReceived(String activityJson){
         // trigger callback to expose result in 3rd party app
 
-        client.model.BotConnectorActivity botConnectorActivity = gson.fromJson(activityJson, client.model.BotConnectorActivity.class);
+        // attachments, entities and channelData are decoded only when first accessed
+        activityReceived(activityJsonReader.read(activityJson));
+    }
 
+    private void activityReceived(client.model.BotConnectorActivity botConnectorActivity) {
         if (botConnectorActivity != null) {
+            latencyTracker.onActivityReceived(botConnectorActivity.getReplyToId());
 
             if (botConnectorActivity.getSuggestedActions() != null && botConnectorActivity.getSuggestedActions().getActions() != null) {
                 List<CardAction> actionList = botConnectorActivity.getSuggestedActions().getActions();
@@ -277,7 +401,7 @@ public class SpeechSdk {
                 suggestedActions.addAll(actionList);
             }
 
-            EventBus.getDefault().post(new ActivityReceived(botConnectorActivity));
+            EventDispatcher.getDefault().post(new ActivityReceived(botConnectorActivity));
         } else {
             LogDebug("json error");
         }
@@ -289,46 +413,145 @@ public class SpeechSdk {
             microphoneStream = null;
         }
 
-        microphoneStream = new MicrophoneStream();
+        microphoneStream = new MicrophoneStream(configuration.microphonePreRollMs);
         return microphoneStream;
     }
 
+    /**
+     * Connect to the bot if not connected yet, a connect already in flight is not repeated.
+     * Cheap enough to call ahead of use to pre-warm the connection.
+     */
     public void connectAsync(){
+        connectionManager.connect("requested");
+    }
+
+    // called by the connection manager
+    private void startConnect(){
         Future<Void> task = botConnector.connectAsync();
-        setOnTaskCompletedListener(task, result -> {
-            // your code here
-            LogDebug("connectAsync");
-            isConnected = true;
-            EventBus.getDefault().post(new Connected());
+        taskCompletionAdapter.toCompletableFuture(task, TASK_TIMEOUT_PERIOD_MS).whenComplete((result, error) -> {
+            if (error == null) {
+                LogDebug("connectAsync");
+                connectionManager.onConnected();
+                EventDispatcher.getDefault().post(new Connected());
+                rearmKeywordListening();
+                replayOutbox();
+            } else if (!(error instanceof CancellationException)) {
+                LogException("connectAsync failed: %s", error);
+                if (connectionManager.onConnectFailed()) {
+                    EventDispatcher.getDefault().post(new Reconnecting(0, String.valueOf(error)));
+                } else {
+                    EventDispatcher.getDefault().post(new Disconnected(0, String.valueOf(error), 0));
+                }
+            }
         });
     }
 
+    public ConnectionManager.State getConnectionState() {
+        return connectionManager.getState();
+    }
+
+    /*
+     * Send the activities stored while offline, in the order they were sent.
+     * They keep the id they were stored with so that the bot can drop duplicates.
+     */
+    private void replayOutbox() {
+        List<ActivityOutbox.Record> records = outbox.getPending();
+        if (records.isEmpty()) return;
+        LogInfo("replaying %d activities from the outbox", records.size());
+
+        for (ActivityOutbox.Record record : records) {
+            if (!replayingIds.add(record.id)) continue; // a previous connect is already replaying it
+            sendQueue.enqueue(null, false, () -> {
+                final Future<String> task = botConnector.sendActivityAsync(record.activityJson);
+                taskCompletionAdapter.toCompletableFuture(task, TASK_TIMEOUT_PERIOD_MS).whenComplete((result, error) -> {
+                    replayingIds.remove(record.id);
+                    if (error == null) {
+                        outbox.acknowledge(record.id);
+                        OnTaskCompletedListener<String> listener = outboxListeners.remove(record.id);
+                        if (listener != null) listener.onCompleted(record.activityJson);
+                    } else if (!(error instanceof CancellationException)) {
+                        LogException("replay of %s failed: %s", record.id, error);
+                    }
+                });
+            });
+        }
+    }
+
     public void listenOnceAsync(){
         LogInfo("listenOnceAsync");
-        EventBus.getDefault().post(new BotListening());
+        connectionManager.connect("listen");
+        latencyTracker.startVoiceTurn();
+        EventDispatcher.getDefault().post(new BotListening());
+        if (microphoneStream != null && voiceActivityDetector != null) {
+            microphoneStream.startUtterance(voiceActivityDetector, configuration.vadGateLeadingSilence, speechDetected -> {
+                // no need to wait for the service to detect the trailing silence
+                handler.post(() -> {
+                    LogInfo("local end of utterance, speech detected: %b", speechDetected);
+                    stopListeningAsync();
+                });
+            });
+        }
         final Future<SpeechRecognitionResult> task = botConnector.listenOnceAsync();
-        setOnTaskCompletedListener(task, result -> {
+        setOnTaskCompletedListener(task, LISTEN_TASK_TIMEOUT_PERIOD_MS, result -> {
             // your code here
         });
     }
 
+    private void stopListeningAsync(){
+        final Future<Void> task = botConnector.stopListeningAsync();
+        setOnTaskCompletedListener(task, result -> {
+            LogInfo("stopListening");
+        });
+    }
+
     public void startKeywordListeningAsync(InputStream inputStream, String keyword){
-        LogInfo("startKeywordListeningAsync");
         try {
-            final Future<Void> task = botConnector.startKeywordRecognitionAsync(KeywordRecognitionModel.fromStream(inputStream,keyword,false ));
-            setOnTaskCompletedListener(task, result -> {
-                LogInfo("startKeywordRecognition");
-            });
+            startKeywordListeningAsync(KeywordRecognitionModel.fromStream(inputStream,keyword,false ));
         }
         catch (FileNotFoundException e){
-            LogException("Keyword file not found " + e.getMessage());
+            LogException("Keyword file not found %s", e.getMessage());
         }
         catch (IOException e){
-            LogException(e.getMessage());
+            LogException("%s", e.getMessage());
+        }
+    }
+
+    /**
+     * No-op if keyword recognition already runs with this model.
+     * The model stays armed until stopKeywordListening(): it is started again whenever the connection
+     * comes back, and the connection is not closed when idle meanwhile.
+     * @param model i.e. from KeywordModelManager, which keeps it across restarts
+     */
+    public void startKeywordListeningAsync(KeywordRecognitionModel model){
+        synchronized (keywordLock) {
+            armedKeywordModel = model;
+            if (model == keywordModel || model == pendingKeywordModel) return;
+            pendingKeywordModel = model;
         }
+        connectionManager.setKeepAlive(true);
+        LogInfo("startKeywordListeningAsync");
+        final Future<Void> task = botConnector.startKeywordRecognitionAsync(model);
+        taskCompletionAdapter.toCompletableFuture(task, TASK_TIMEOUT_PERIOD_MS).whenComplete((result, error) -> {
+            synchronized (keywordLock) {
+                if (pendingKeywordModel != model) return; // stopped or disconnected meanwhile
+                pendingKeywordModel = null;
+                keywordModel = error == null ? model : null;
+            }
+            if (error == null) {
+                LogInfo("startKeywordRecognition");
+            } else if (!(error instanceof CancellationException)) {
+                LogException("startKeywordRecognition failed: %s", error);
+            }
+        });
     }
 
     public void stopKeywordListening(){
+        synchronized (keywordLock) {
+            if (armedKeywordModel == null && keywordModel == null && pendingKeywordModel == null) return;
+            armedKeywordModel = null;
+            clearKeywordModel();
+        }
+        connectionManager.setKeepAlive(false);
         final Future<Void> task = botConnector.stopKeywordRecognitionAsync();
         setOnTaskCompletedListener(task, result -> {
             // your code here
@@ -336,39 +559,89 @@ public class SpeechSdk {
         });
     }
 
-    private void startResponseTimeoutTimer(){
-        LogInfo("startResponseTimeoutTimer");
+    // keyword recognition doesn't outlive the connection, starting it again must not be skipped as a no-op
+    // the armed model is kept, see rearmKeywordListening()
+    private void clearKeywordModel(){
+        synchronized (keywordLock) {
+            keywordModel = null;
+            pendingKeywordModel = null;
+        }
+    }
+
+    // the connection came back, i.e. after a drop, keyword recognition went with it
+    private void rearmKeywordListening(){
+        KeywordRecognitionModel model;
+        synchronized (keywordLock) {
+            model = armedKeywordModel;
+        }
+        if (model != null) startKeywordListeningAsync(model);
+    }
+
+    private static class PendingResponse {
+        final String type;
+        final String utterance;
+        final long startTime = SystemClock.elapsedRealtime();
+
+        PendingResponse(String type, String utterance) {
+            this.type = type;
+            this.utterance = utterance;
+        }
+    }
+
+    /*
+     * @param type REQUEST_TYPE_VOICE or REQUEST_TYPE_MESSAGE
+     * @param utterance what the user said or typed, the timeout is learned per intent from it
+     */
+    private void startResponseTimeoutTimer(String type, String utterance){
+        final long timeoutMs = responseTimeoutEstimator.getTimeoutMs(type, utterance);
+        LogInfo("startResponseTimeoutTimer: %dms", timeoutMs);
         if (timeoutResponseRunnable == null) {
             timeoutResponseRunnable = () -> {
+                PendingResponse request = pendingResponse;
+                pendingResponse = null;
+                if (request != null) responseTimeoutEstimator.onTimeout(request.type, request.utterance);
                 // reset state as if the previous request was received to let user make new request
-                EventBus.getDefault().post(new RequestTimeout());
+                EventDispatcher.getDefault().post(new RequestTimeout());
             };
         }
 
-        handler.postDelayed(timeoutResponseRunnable, RESPONSE_TIMEOUT_PERIOD_MS);
+        handler.removeCallbacks(timeoutResponseRunnable);
+        pendingResponse = new PendingResponse(type, utterance);
+        handler.postDelayed(timeoutResponseRunnable, timeoutMs);
+    }
+
+    // the response arrived, learn its round trip
+    private void onResponseReceived(){
+        PendingResponse request = pendingResponse;
+        if (request != null) {
+            responseTimeoutEstimator.addSample(request.type, request.utterance, SystemClock.elapsedRealtime() - request.startTime);
+        }
+        cancelResponseTimeoutTimer();
     }
 
     private void cancelResponseTimeoutTimer(){
         LogInfo("cancelResponseTimeoutTimer");
+        pendingResponse = null;
         if (timeoutResponseRunnable != null && handler != null){
             handler.removeCallbacks(timeoutResponseRunnable);
         }
     }
 
     public void sendActivityMessageAsync(CharSequence chars) {
-        LogInfo("sendActivityMessageAsync\n" + chars);
+        LogInfo("sendActivityMessageAsync\n%s", chars);
         if (botConnector != null) {
 
             final client.model.Activity activityTemplate = new client.model.Activity();
             activityTemplate.text((String)chars);
             activityTemplate.type(ActivityTypes.MESSAGE);
+            activityTemplate.setId(UUID.randomUUID().toString()); // the reply refers to it with its replyToId
             if (from_user != null) activityTemplate.setFrom(from_user);
+            latencyTracker.startTypedTurn(activityTemplate.getId());
 
-            final String activityJson = gson.toJson(activityTemplate);
-            final Future<String> task = botConnector.sendActivityAsync(activityJson);
-            setOnTaskCompletedListener(task, result -> {
+            // user messages flush the queue right away and are never coalesced
+            sendActivity(activityTemplate, null, true, true, activityJson -> {
                 LogInfo("sendActivityAsync done");
-                startResponseTimeoutTimer();
+                startResponseTimeoutTimer(REQUEST_TYPE_MESSAGE, (String) chars);
             });
         }
     }
@@ -381,12 +654,11 @@ public class SpeechSdk {
         client.model.Activity activityTemplate = createEventActivity("VA.Location", null, coordinates);
         if (from_user != null) activityTemplate.setFrom(from_user);
 
-        final String activityJson = gson.toJson(activityTemplate);
-        final Future<String> task = botConnector.sendActivityAsync(activityJson);
-        setOnTaskCompletedListener(task, result -> {
-            LogInfo("sendLocationEvent done: "+activityJson);
+        // only the latest location is sent if several are pending
+        sendActivity(activityTemplate, "VA.Location", false, false, activityJson -> {
+            LogInfo("sendLocationEvent done: %s", activityJson);
             dateSentLocationEvent = DateUtils.getCurrentTime();
-            EventBus.getDefault().post(new GpsLocationSent(latitude, longitude));
+            EventDispatcher.getDefault().post(new GpsLocationSent(latitude, longitude));
         });
     }
 
@@ -396,18 +668,36 @@ public class SpeechSdk {
     private void sendTimeZoneEvent(TimeZone tz) {
         client.model.Activity activityTemplate = createEventActivity("VA.Timezone", null, tz.getDisplayName());
 
-        final String activityJson = gson.toJson(activityTemplate);
-        final Future<String> task = botConnector.sendActivityAsync(activityJson);
-        setOnTaskCompletedListener(task, result -> {
-            LogDebug("sendActivityAsync done: "+activityJson);
+        sendActivity(activityTemplate, "VA.Timezone", false, false, activityJson -> {
+            LogDebug("sendActivityAsync done: %s", activityJson);
         });
     }
 
     public void disconnectAsync() {
         cancelResponseTimeoutTimer();
-        isConnected = false;
+        // callbacks of requests still in flight no longer apply
+        taskCompletionAdapter.cancelAll();
+        LogInfo("disconnectAsync, tasks: %s", taskCompletionAdapter.getMetrics());
+        LogInfo("disconnectAsync, send queue: %s", sendQueue.getMetrics());
+        LogInfo("disconnectAsync, tts buffer: %s", synthesizer.getBufferMetrics());
+        LogInfo("disconnectAsync, tts cache: %s", ttsAudioCache);
         stopKeywordListening();
-        final Future<Void> task = botConnector.disconnectAsync();
+        connectionManager.disconnect();
+    }
+
+    /**
+     * Disconnect and release the microphone, the instance can't be used afterwards
+     * @return completed once disconnected, the keyword model may be in use until then
+     */
+    public CompletableFuture<Void> close() {
+        disconnectAsync();
+        if (microphoneStream != null) {
+            microphoneStream.close();
+            microphoneStream = null;
+        }
+        Future<Void> task = disconnectTask;
+        if (task == null) return CompletableFuture.completedFuture(null);
+        return taskCompletionAdapter.toCompletableFuture(task, TASK_TIMEOUT_PERIOD_MS);
     }
 
     public String getDateSentLocationEvent() {
@@ -416,6 +706,22 @@ public class SpeechSdk {
 
     public Synthesizer getSynthesizer() { return synthesizer; }
 
+    public TaskCompletionAdapter.Metrics getTaskMetrics() {
+        return taskCompletionAdapter.getMetrics();
+    }
+
+    public ActivitySendQueue.Metrics getSendQueueMetrics() {
+        return sendQueue.getMetrics();
+    }
+
+    /**
+     * @return turn latency percentiles per stage as JSON
+     * @see TurnLatencyTracker#getStats()
+     */
+    public String getLatencyStats() {
+        return latencyTracker.getStatsJson();
+    }
+
     public ArrayList<CardAction> getSuggestedActions() {
         return suggestedActions;
     }
@@ -437,14 +743,41 @@ public class SpeechSdk {
             if (from_user != null) activityTemplate.setFrom(from_user);
             activityTemplate.setValue("");
 
-            final String activityJson = gson.toJson(activityTemplate);
-            final Future<String> task = botConnector.sendActivityAsync(activityJson);
-            setOnTaskCompletedListener(task, result -> {
-                LogDebug("requestWelcomeCard done: "+activityJson);
+            sendActivity(activityTemplate, "startConversation", false, false, activityJson -> {
+                LogDebug("requestWelcomeCard done: %s", activityJson);
             });
         }
     }
 
+    /*
+     * Queue the activity, it is serialized when it is actually sent.
+     * While not connected it is stored in the outbox instead and replayed once connected, the
+     * listener is then called when the replay completes (if the process is still the same).
+     * @param coalesceKey a pending activity with the same key is replaced by this one, null to never coalesce
+     * @param urgent true to send it (and anything queued before it) right away
+     * @param durable true to keep it in the outbox across process death, false for the events sent again on start
+     * @param listener called with the activity JSON once the send completed
+     */
+    private void sendActivity(client.model.Activity activity, String coalesceKey, boolean urgent, boolean durable, OnTaskCompletedListener<String> listener) {
+        if (!connectionManager.isConnected()) {
+            if (activity.getId() == null) activity.setId(UUID.randomUUID().toString());
+            final String id = activity.getId();
+            outboxListeners.put(id, listener);
+            String supersededId = outbox.add(id, coalesceKey, gson.toJson(activity), durable);
+            if (supersededId != null) outboxListeners.remove(supersededId);
+            LogInfo("not connected, activity %s stored in the outbox", id);
+            connectionManager.connect("send");
+            return;
+        }
+
+        connectionManager.onActivity();
+        sendQueue.enqueue(coalesceKey, urgent, () -> {
+            final String activityJson = gson.toJson(activity);
+            final Future<String> task = botConnector.sendActivityAsync(activityJson);
+            setOnTaskCompletedListener(task, result -> listener.onCompleted(activityJson));
+        });
+    }
+
     /*
      * Create Event Activity with inputs: name, channel data, and value
      */
@@ -461,19 +794,20 @@ public class SpeechSdk {
     }
 
     private <T> void setOnTaskCompletedListener(Future<T> task, OnTaskCompletedListener<T> listener) {
-        s_executorService.submit(() -> {
-            T result = task.get();
-            listener.onCompleted(result);
-            return null;
+        setOnTaskCompletedListener(task, TASK_TIMEOUT_PERIOD_MS, listener);
+    }
+
+    private <T> void setOnTaskCompletedListener(Future<T> task, long timeoutMs, OnTaskCompletedListener<T> listener) {
+        taskCompletionAdapter.toCompletableFuture(task, timeoutMs).whenComplete((result, error) -> {
+            if (error == null) {
+                listener.onCompleted(result);
+            } else if (!(error instanceof CancellationException)) {
+                LogException("task failed: %s", error);
+            }
         });
     }
 
     private interface OnTaskCompletedListener<T> {
         void onCompleted(T taskResult);
     }
-
-    private static ExecutorService s_executorService;
-    static {
-        s_executorService = Executors.newCachedThreadPool();
-    }
 }
@@ -35,204 +35,336 @@ package com.microsoft.bot.builder.solutions.directlinespeech;
 import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioTrack;
+import android.os.Process;
 import android.util.Log;
 
-import com.microsoft.cognitiveservices.speech.audio.PullAudioInputStream;
 import com.microsoft.cognitiveservices.speech.audio.PullAudioOutputStream;
 
-import org.greenrobot.eventbus.EventBus;
-
-import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+import events.EventDispatcher;
 import events.SynthesizerStopped;
 
+/**
+ * Plays the TTS streams received from the bot, one after the other.
+ * A prefetch thread reads the queued streams ahead into an AudioPrefetchBuffer, up to
+ * PREFETCH_STREAMS streams ahead of playback, so that the next stream is ready as soon as the
+ * current one ends. A single playback thread writes the prefetched chunks to an AudioTrack that
+ * stays allocated across utterances. The threads and the track are created on the first enqueue and
+ * released after IDLE_RELEASE_MS without anything to play.
+ * SynthesizerStopped is posted once all the queued streams are played, isPlaying() and the number of
+ * pending streams are updated under the same lock so an enqueue can't be lost in between.
+ * Streams are tagged with the generation they were queued in. cancel() (barge-in) starts a new
+ * generation, silences the track and discards everything buffered right away. The playback thread
+ * writes in FRAME_BYTES slices so that it notices the cancellation within one frame.
+ */
 public class Synthesizer {
 
+    // CONSTANTS
     static final String logTag = "Synthesizer";
-
-    private AudioTrack audioTrack;
     final int SAMPLE_RATE = 16000;
     static final int channelConfiguration = AudioFormat.CHANNEL_OUT_MONO;
     static final int audioEncoding = AudioFormat.ENCODING_PCM_16BIT;
-    private AtomicBoolean isPlaying = new AtomicBoolean(false);
-    private int playBufSize;
-    private LinkedList<PullAudioOutputStream> streamList ;
+    private static final long IDLE_RELEASE_MS = 60 * 1000;
+    private static final int PREFETCH_STREAMS = 3;
+    private static final int BYTES_PER_FRAME = 2; // 16bit mono
+    private static final int FRAME_BYTES = 16000 / 50 * BYTES_PER_FRAME; // 20ms
+
+    // STATE
+    private final BlockingQueue<QueuedStream> streamQueue = new LinkedBlockingQueue<>();
+    private final BlockingQueue<AudioPrefetchBuffer.Stream> prefetchedQueue = new ArrayBlockingQueue<>(PREFETCH_STREAMS);
+    private final AudioPrefetchBuffer prefetchBuffer = new AudioPrefetchBuffer();
+    private final Object lock = new Object();
+    private Thread prefetchThread; // guarded by lock
+    private Thread playbackThread; // guarded by lock
+    private int pendingStreams; // guarded by lock, queued and not played yet
+    private boolean isPlaying; // guarded by lock, true from the first enqueue until all the streams are played
+    private volatile int generation;
+    private volatile AudioTrack audioTrack; // created and released by the playback thread
+    private volatile boolean trackPlaying; // audio was written since the queue was last drained
+    private volatile AudioPrefetchBuffer.Stream currentStream; // being played, null if none
+    private volatile long framesWritten; // since the track was last started
 
-    private Lock streamListLock = new ReentrantLock();
+    private static class QueuedStream {
+        final AudioSource stream;
+        final int generation;
 
+        QueuedStream(AudioSource stream, int generation) {
+            this.stream = stream;
+            this.generation = generation;
+        }
+    }
 
     public boolean isPlaying() {
-        return isPlaying.get();
+        synchronized (lock) {
+            return isPlaying;
+        }
     }
 
-    public void stopPlaying()
-    {
-        isPlaying.set(false);
+    /**
+     * @return fill level and underruns of the prefetch buffer
+     */
+    public AudioPrefetchBuffer.Metrics getBufferMetrics() {
+        return prefetchBuffer.getMetrics();
     }
-    public void playStream(PipedOutputStream out, final Runnable callback)
-    {
-        try {
-            playBufSize = AudioTrack.getMinBufferSize(SAMPLE_RATE, channelConfiguration, audioEncoding);
-            PipedInputStream in = new PipedInputStream(out, playBufSize);
 
-            AudioAttributes attrs = new AudioAttributes.Builder().
-                    setContentType(AudioAttributes.CONTENT_TYPE_SPEECH).
-                    setUsage(AudioAttributes.USAGE_MEDIA).build();
+    /**
+     * Queue a stream for playback, playback starts right away if nothing is playing
+     */
+    public void playStream(PullAudioOutputStream stream){
+        playStream(stream::read);
+    }
 
-            AudioFormat fmt = new AudioFormat.Builder().
-                    setChannelMask(AudioFormat.CHANNEL_OUT_MONO).
-                    setEncoding(AudioFormat.ENCODING_PCM_16BIT).
-                    setSampleRate(SAMPLE_RATE).build();
-            audioTrack = new AudioTrack(attrs, fmt, playBufSize, AudioTrack.MODE_STREAM, 0);
-            new Thread() {
-                byte[] buffer = new byte[playBufSize];
-
-                public void run() {
-                    audioTrack.play();
-                    isPlaying.set(true);
-                    long readSize = -1;
-
-                    while (isPlaying.get()) {
-                        try {
-                            if(streamList.peekFirst() != null){
-                                PullAudioOutputStream stream = streamList.getFirst();
-                                while(readSize != 0){
-                                    readSize = stream.read(buffer);
-                                    audioTrack.write(buffer, 0, (int)readSize);
-                                }
-                                streamList.removeFirst();
-                            }
-                            else{
-                                Thread.sleep(50);
-                            }
-
-                            //readSize = in.read(buffer);
-                        } catch (Exception e) {
-                            Log.e(logTag, "read exception", e);
-                            break;
-                        }
-                        //audioTrack.write(buffer, 0, readSize);
-                    }
-                    audioTrack.stop();
-                    audioTrack.release();
-                    try {
-                        in.close();
-                        callback.run();
-                    } catch (Exception e) {
-                        Log.e(logTag, "close exception", e);
-                    }
-                }
-            }.start();
-        }
-        catch (IOException e)
-        {
-            Log.e(logTag, "init exception", e);
+    /**
+     * Queue PCM audio that is already available, i.e. cached
+     */
+    public void playAudio(byte[] pcm){
+        playStream(new AudioSource() {
+            private int offset;
+
+            @Override
+            public long read(byte[] buffer) {
+                int size = Math.min(buffer.length, pcm.length - offset);
+                System.arraycopy(pcm, offset, buffer, 0, size);
+                offset += size;
+                return size;
+            }
+        });
+    }
+
+    public void playStream(AudioSource stream){
+        synchronized (lock) {
+            streamQueue.add(new QueuedStream(stream, generation));
+            pendingStreams++;
+            isPlaying = true;
+            if (prefetchThread == null) {
+                prefetchThread = new Thread(this::runPrefetch, logTag + "Prefetch");
+                prefetchThread.start();
+            }
+            if (playbackThread == null) {
+                playbackThread = new Thread(this::runPlayback, logTag);
+                playbackThread.start();
+            }
         }
     }
 
-    //stop playing audio data
-    // if use STREAM mode, will wait for the end of the last write buffer data will stop.
-    // if you stop immediately, call the pause() method and then call the flush() method to discard the data that has not yet been played
+    /**
+     * Stop the audio now, same as cancel()
+     */
     public void stopSound() {
-        try {
-            if (audioTrack != null && audioTrack.getState() == AudioTrack.STATE_INITIALIZED) {
-                audioTrack.pause();
-                audioTrack.flush();
+        cancel();
+    }
+
+    /**
+     * Barge-in: silence the track and drop the current and queued streams right away.
+     * The part of the streams not received from the service yet is not counted in the result.
+     * @return milliseconds of audio dropped, from the track buffer and the prefetch buffer
+     */
+    public long cancel() {
+        long droppedBytes = 0;
+        boolean drained;
+        List<QueuedStream> queued = new ArrayList<>();
+        synchronized (lock) {
+            if (!isPlaying) return 0;
+            generation++;
 
+            // not picked up by the prefetch thread yet, which closes the ones it reads
+            int removed = streamQueue.drainTo(queued);
+            AudioPrefetchBuffer.Stream prefetched;
+            while ((prefetched = prefetchedQueue.poll()) != null) {
+                droppedBytes += prefetchBuffer.discard(prefetched);
+                removed++;
+            }
+            pendingStreams -= removed;
+            drained = pendingStreams == 0;
+            if (drained) {
+                isPlaying = false;
+                trackPlaying = false;
+            }
+        }
+
+        for (QueuedStream queuedStream : queued) queuedStream.stream.close();
+
+        AudioPrefetchBuffer.Stream current = currentStream;
+        if (current != null) droppedBytes += prefetchBuffer.discard(current);
+
+        try {
+            AudioTrack track = audioTrack;
+            if (track != null && track.getState() == AudioTrack.STATE_INITIALIZED) {
+                // pause() and flush() discard the data that has not been played yet
+                long unplayedFrames = framesWritten - (track.getPlaybackHeadPosition() & 0xFFFFFFFFL);
+                droppedBytes += Math.max(0, Math.min(unplayedFrames, track.getBufferSizeInFrames())) * BYTES_PER_FRAME;
+                track.pause();
+                track.flush();
             }
         } catch (Exception e) {
-            Log.e(logTag, "StopSound", e);
+            Log.e(logTag, "cancel", e);
         }
-    }
 
-    public Synthesizer() {
-        this.streamList = new LinkedList<PullAudioOutputStream>();
+        long droppedMs = droppedBytes * 1000 / (SAMPLE_RATE * BYTES_PER_FRAME);
+        Log.i(logTag, "cancelled, dropped " + droppedMs + "ms of audio");
+        if (drained) {
+            // no stream was being played, the playback thread won't report it
+            TurnLatencyTracker.getDefault().mark(TurnLatencyTracker.Stage.PLAYBACK_END);
+            EventDispatcher.getDefault().post(new SynthesizerStopped());
+        }
+        return droppedMs;
     }
 
-    public void playStream(PullAudioOutputStream stream){
-        if(!isPlaying.get()){
-            safeAddToStreamList(stream);
-            startPlaying();
+    private void runPrefetch() {
+        while (true) {
+            try {
+                QueuedStream queuedStream = streamQueue.poll(IDLE_RELEASE_MS, TimeUnit.MILLISECONDS);
+                if (queuedStream == null) {
+                    synchronized (lock) {
+                        if (streamQueue.isEmpty()) {
+                            prefetchThread = null;
+                            return;
+                        }
+                    }
+                    continue;
+                }
+
+                // blocks while PREFETCH_STREAMS streams are waiting for playback
+                AudioPrefetchBuffer.Stream prefetched = new AudioPrefetchBuffer.Stream(queuedStream.generation);
+                prefetchedQueue.put(prefetched);
+                try {
+                    prefetchBuffer.fill(queuedStream.stream, prefetched, () -> prefetched.generation != generation);
+                } catch (RuntimeException e) {
+                    Log.e(logTag, "read exception", e);
+                } finally {
+                    queuedStream.stream.close();
+                }
+            } catch (InterruptedException e) {
+                Log.e(logTag, "prefetch interrupted", e);
+            }
         }
-        else {
-            safeAddToStreamList(stream);
+    }
+
+    private void runPlayback() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+
+        while (true) {
+            AudioPrefetchBuffer.Stream stream;
+            try {
+                stream = prefetchedQueue.poll(IDLE_RELEASE_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                stream = null;
+            }
+
+            if (stream == null) {
+                synchronized (lock) {
+                    if (pendingStreams == 0) {
+                        // idle, give the AudioTrack back, the next enqueue starts a new thread
+                        releaseAudioTrack();
+                        playbackThread = null;
+                        return;
+                    }
+                }
+                continue;
+            }
+
+            playUtteranceStream(stream);
+
+            boolean drained;
+            synchronized (lock) {
+                pendingStreams--;
+                drained = pendingStreams == 0;
+                if (drained) isPlaying = false;
+            }
+            if (drained) {
+                trackPlaying = false;
+                // the track stays allocated for the next utterance
+                if (audioTrack != null) {
+                    if (stream.generation == generation) {
+                        audioTrack.stop(); // plays out what was written
+                    } else {
+                        // cancelled, discard what was written after cancel() paused the track
+                        audioTrack.pause();
+                        audioTrack.flush();
+                    }
+                }
+                Log.d(logTag, "playback done, buffer: " + prefetchBuffer.getMetrics());
+                TurnLatencyTracker.getDefault().mark(TurnLatencyTracker.Stage.PLAYBACK_END);
+                // trigger event that playback is stopped
+                EventDispatcher.getDefault().post(new SynthesizerStopped());
+            }
         }
     }
 
-    private void safeAddToStreamList(PullAudioOutputStream stream){
-        this.streamListLock.lock();
+    private void playUtteranceStream(AudioPrefetchBuffer.Stream stream) {
+        if (stream.generation != generation) {
+            prefetchBuffer.discard(stream);
+            return;
+        }
+
+        currentStream = stream;
         try {
-            this.streamList.add(stream);
+            AudioTrack track = prepareAudioTrack();
+            boolean audioWritten = false;
+            AudioPrefetchBuffer.Chunk chunk;
+            // waiting for data is an underrun (audible gap) once audio is playing
+            while ((chunk = prefetchBuffer.next(stream, trackPlaying)) != null) {
+                // frame by frame, so that a cancel stops the loop in the middle of the chunk
+                for (int offset = 0; offset < chunk.length && stream.generation == generation; offset += FRAME_BYTES) {
+                    int size = Math.min(FRAME_BYTES, chunk.length - offset);
+                    track.write(chunk.data, offset, size);
+                    framesWritten += size / BYTES_PER_FRAME;
+                }
+                prefetchBuffer.recycle(chunk);
+                if (stream.generation != generation) {
+                    prefetchBuffer.discard(stream);
+                    return;
+                }
+                trackPlaying = true;
+                if (!audioWritten) {
+                    audioWritten = true;
+                    TurnLatencyTracker.getDefault().mark(TurnLatencyTracker.Stage.FIRST_AUDIO);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.e(logTag, "playback interrupted", e);
+        } catch (Exception e) {
+            Log.e(logTag, "write exception", e);
         } finally {
-            this.streamListLock.unlock();
+            currentStream = null;
         }
     }
 
-    private void startPlaying(){
-            isPlaying.set(true);
-            playBufSize = AudioTrack.getMinBufferSize(SAMPLE_RATE, channelConfiguration, audioEncoding);
+    // reuses the AudioTrack of the previous utterance if there is one
+    private AudioTrack prepareAudioTrack() {
+        if (audioTrack == null) {
+            int playBufSize = AudioTrack.getMinBufferSize(SAMPLE_RATE, channelConfiguration, audioEncoding);
 
             AudioAttributes attrs = new AudioAttributes.Builder().
                     setContentType(AudioAttributes.CONTENT_TYPE_SPEECH).
                     setUsage(AudioAttributes.USAGE_MEDIA).build();
 
             AudioFormat fmt = new AudioFormat.Builder().
-                    setChannelMask(AudioFormat.CHANNEL_OUT_MONO).
-                    setEncoding(AudioFormat.ENCODING_PCM_16BIT).
+                    setChannelMask(channelConfiguration).
+                    setEncoding(audioEncoding).
                     setSampleRate(SAMPLE_RATE).build();
             audioTrack = new AudioTrack(attrs, fmt, playBufSize, AudioTrack.MODE_STREAM, 0);
-            new Thread() {
-                byte[] buffer = new byte[playBufSize];
-
-                public void run() {
-                    audioTrack.play();
-                    isPlaying.set(true);
-
-                    while (streamList.size() > 0) {
-                        try {
-                            if(streamList.peekFirst() != null){
-                                PullAudioOutputStream stream = streamList.getFirst();
-                                long readSize = -1;
-                                while(readSize != 0){
-                                    readSize = stream.read(buffer);
-                                    audioTrack.write(buffer, 0, (int)readSize);
-                                }
-
-                                streamListLock.lock();
-                                try{
-                                    streamList.removeFirst();
-                                }
-                                finally {
-                                    streamListLock.unlock();
-                                }
-                            }
-
-                            //readSize = in.read(buffer);
-                        } catch (Exception e) {
-                            Log.e(logTag, "read exception", e);
-                            break;
-                        }
-                        //audioTrack.write(buffer, 0, readSize);
-                    }
-                    audioTrack.stop();
-                    audioTrack.release();
-                    isPlaying.set(false);
-                    // trigger event that playback is stopped
-                    EventBus.getDefault().post(new SynthesizerStopped());
-                }
-            }.start();
-    }
+        }
 
+        int playState = audioTrack.getPlayState();
+        if (playState == AudioTrack.PLAYSTATE_PAUSED) audioTrack.flush(); // leftovers of a stopped utterance
+        if (playState != AudioTrack.PLAYSTATE_PLAYING) {
+            audioTrack.play();
+            framesWritten = 0;
+        }
+        return audioTrack;
+    }
 
+    private void releaseAudioTrack() {
+        if (audioTrack != null) {
+            audioTrack.release();
+            audioTrack = null;
+        }
+    }
 }
@@ -0,0 +1,224 @@
+package com.microsoft.bot.builder.solutions.directlinespeech;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Turns the Futures returned by the Speech SDK into CompletableFutures without parking a thread
+ * per Future. A single poller thread checks the pending Futures while any are pending, and completes
+ * them on a small fixed callback pool. The poll interval starts at MIN_POLL_INTERVAL_MS and doubles
+ * up to MAX_POLL_INTERVAL_MS while no task arrives or completes, i.e. during a long listen.
+ * The threads are shared by all adapters and time out when idle.
+ */
+public class TaskCompletionAdapter {
+
+    // CONSTANTS
+    private static final long MIN_POLL_INTERVAL_MS = 10;
+    private static final long MAX_POLL_INTERVAL_MS = 200;
+    private static final int CALLBACK_THREADS = 2;
+    private static final long IDLE_THREAD_TIMEOUT_S = 30;
+
+    // SHARED STATE
+    private static final ScheduledThreadPoolExecutor s_poller;
+    private static final ThreadPoolExecutor s_callbackExecutor;
+    private static final ConcurrentLinkedQueue<PendingTask<?>> s_newTasks = new ConcurrentLinkedQueue<>();
+    private static final List<PendingTask<?>> s_pendingTasks = new ArrayList<>(); // poller thread only
+    private static final AtomicLong s_nextPollTime = new AtomicLong(); // 0 if no poll is scheduled
+    private static long s_pollIntervalMs = MIN_POLL_INTERVAL_MS; // poller thread only
+    private static final AtomicInteger s_pendingCount = new AtomicInteger();
+    private static final AtomicInteger s_peakPendingCount = new AtomicInteger();
+
+    static {
+        s_poller = new ScheduledThreadPoolExecutor(1, namedThreadFactory("TaskCompletionPoller"));
+        s_poller.setKeepAliveTime(IDLE_THREAD_TIMEOUT_S, TimeUnit.SECONDS);
+        s_poller.allowCoreThreadTimeOut(true);
+
+        s_callbackExecutor = new ThreadPoolExecutor(CALLBACK_THREADS, CALLBACK_THREADS,
+                IDLE_THREAD_TIMEOUT_S, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), namedThreadFactory("TaskCompletionCallback"));
+        s_callbackExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    // STATE
+    private final Set<PendingTask<?>> tasks = ConcurrentHashMap.newKeySet();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong timedOutCount = new AtomicLong();
+    private final AtomicLong cancelledCount = new AtomicLong();
+
+    private static class PendingTask<T> {
+        final TaskCompletionAdapter owner;
+        final Future<T> source;
+        final CompletableFuture<T> target = new CompletableFuture<>();
+        final long deadline;
+
+        PendingTask(TaskCompletionAdapter owner, Future<T> source, long deadline) {
+            this.owner = owner;
+            this.source = source;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Snapshot of the adapter counters and the shared thread usage
+     */
+    public static class Metrics {
+        public int pendingTasks;
+        public int peakPendingTasks;
+        public long completedTasks;
+        public long failedTasks;
+        public long timedOutTasks;
+        public long cancelledTasks;
+        public int callbackThreadsActive;
+        public int callbackQueueDepth;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "pending=%d peak=%d completed=%d failed=%d timedOut=%d cancelled=%d callbackActive=%d/%d callbackQueue=%d",
+                    pendingTasks, peakPendingTasks, completedTasks, failedTasks, timedOutTasks, cancelledTasks,
+                    callbackThreadsActive, CALLBACK_THREADS, callbackQueueDepth);
+        }
+    }
+
+    /**
+     * @param task Future returned by the Speech SDK
+     * @param timeoutMs the returned future fails with a TimeoutException after this period, 0 for no timeout
+     * @return future completed on the callback pool with the result of the task
+     */
+    public <T> CompletableFuture<T> toCompletableFuture(Future<T> task, long timeoutMs) {
+        long deadline = timeoutMs > 0 ? System.currentTimeMillis() + timeoutMs : 0;
+        PendingTask<T> pendingTask = new PendingTask<>(this, task, deadline);
+        tasks.add(pendingTask);
+
+        int pending = s_pendingCount.incrementAndGet();
+        s_peakPendingCount.accumulateAndGet(pending, Math::max);
+
+        s_newTasks.add(pendingTask);
+        schedulePoll(MIN_POLL_INTERVAL_MS);
+        return pendingTask.target;
+    }
+
+    /**
+     * Cancel all the futures created by this adapter that are not completed yet.
+     * Their dependent callbacks will not run. The Speech SDK tasks themselves are not interrupted.
+     */
+    public void cancelAll() {
+        // removed one by one, a task added meanwhile is either cancelled or kept, never dropped uncancelled
+        Iterator<PendingTask<?>> iterator = tasks.iterator();
+        while (iterator.hasNext()) {
+            PendingTask<?> task = iterator.next();
+            iterator.remove();
+            if (task.target.cancel(false)) cancelledCount.incrementAndGet();
+        }
+    }
+
+    public Metrics getMetrics() {
+        Metrics metrics = new Metrics();
+        metrics.pendingTasks = s_pendingCount.get();
+        metrics.peakPendingTasks = s_peakPendingCount.get();
+        metrics.completedTasks = completedCount.get();
+        metrics.failedTasks = failedCount.get();
+        metrics.timedOutTasks = timedOutCount.get();
+        metrics.cancelledTasks = cancelledCount.get();
+        metrics.callbackThreadsActive = s_callbackExecutor.getActiveCount();
+        metrics.callbackQueueDepth = s_callbackExecutor.getQueue().size();
+        return metrics;
+    }
+
+    // no-op if a poll is already scheduled at least as early
+    private static void schedulePoll(long delayMs) {
+        long time = System.currentTimeMillis() + delayMs;
+        while (true) {
+            long scheduled = s_nextPollTime.get();
+            if (scheduled != 0 && scheduled <= time) return;
+            if (s_nextPollTime.compareAndSet(scheduled, time)) {
+                // a later poll already scheduled still runs, polling is idempotent
+                s_poller.schedule(TaskCompletionAdapter::poll, delayMs, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+    }
+
+    // runs on the poller thread
+    private static void poll() {
+        s_nextPollTime.set(0);
+        boolean changed = false;
+        PendingTask<?> newTask;
+        while ((newTask = s_newTasks.poll()) != null) {
+            s_pendingTasks.add(newTask);
+            changed = true;
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator<PendingTask<?>> iterator = s_pendingTasks.iterator();
+        while (iterator.hasNext()) {
+            PendingTask<?> task = iterator.next();
+            if (task.target.isDone()) {
+                // cancelled by the owner
+            } else if (task.source.isDone()) {
+                s_callbackExecutor.execute(() -> complete(task));
+            } else if (task.deadline != 0 && now >= task.deadline) {
+                s_callbackExecutor.execute(() -> {
+                    if (task.target.completeExceptionally(new TimeoutException("task did not complete in time"))) {
+                        task.owner.timedOutCount.incrementAndGet();
+                    }
+                });
+            } else {
+                continue;
+            }
+            iterator.remove();
+            task.owner.tasks.remove(task);
+            s_pendingCount.decrementAndGet();
+            changed = true;
+        }
+
+        s_pollIntervalMs = changed ? MIN_POLL_INTERVAL_MS : Math.min(MAX_POLL_INTERVAL_MS, s_pollIntervalMs * 2);
+        if (!s_newTasks.isEmpty()) {
+            schedulePoll(MIN_POLL_INTERVAL_MS);
+        } else if (!s_pendingTasks.isEmpty()) {
+            schedulePoll(s_pollIntervalMs);
+        }
+    }
+
+    // runs on the callback pool, the source future is done so get() does not block
+    private static <T> void complete(PendingTask<T> task) {
+        try {
+            T result = task.source.get();
+            if (task.target.complete(result)) task.owner.completedCount.incrementAndGet();
+        } catch (ExecutionException e) {
+            task.owner.failedCount.incrementAndGet();
+            task.target.completeExceptionally(e.getCause() != null ? e.getCause() : e);
+        } catch (CancellationException e) {
+            if (task.target.cancel(false)) task.owner.cancelledCount.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            task.target.completeExceptionally(e);
+        }
+    }
+
+    private static ThreadFactory namedThreadFactory(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,241 @@
+package com.microsoft.bot.builder.solutions.directlinespeech;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the synthesized TTS audio, so that the responses the bot repeats (welcome prompts,
+ * confirmations, errors) play right away.
+ * Entries are keyed by a SHA-256 of the speak text, the locale and the custom voice deployment ids.
+ * Two tiers, both size-bounded LRU: a memory tier and a disk tier under the given directory. A disk
+ * hit is promoted to memory. The disk is only read by the thread reading the audio, i.e. the
+ * Synthesizer's, never by the caller. The audio of a miss is recorded while it plays and only
+ * stored once the stream ended normally.
+ */
+public class TtsAudioCache {
+
+    // CONSTANTS
+    private static final String LOGTAG = "TtsAudioCache";
+    public static final String CACHEDIRECTORYNAME = "ttscache";
+    private static final int MEMORY_CACHE_BYTES = 4 * 1024 * 1024;
+    private static final long DISK_CACHE_BYTES = 32 * 1024 * 1024;
+    private static final int MAX_ENTRY_BYTES = 1024 * 1024; // 32s of 16kHz 16bit mono
+
+    // STATE
+    private final File directory;
+    private final LruCache<String, byte[]> memoryCache = new LruCache<String, byte[]>(MEMORY_CACHE_BYTES) {
+        @Override
+        protected int sizeOf(String key, byte[] value) {
+            return value.length;
+        }
+    };
+    private final LinkedHashMap<String, Long> diskEntries = new LinkedHashMap<>(16, 0.75f, true); // guarded by itself, size by key, LRU first
+    private long diskBytes; // guarded by diskEntries
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param directory the disk tier is stored in a sub directory
+     */
+    public TtsAudioCache(String directory) {
+        this.directory = new File(directory, CACHEDIRECTORYNAME);
+        if (!this.directory.exists() && !this.directory.mkdirs()) Log.e(LOGTAG, "unable to create " + this.directory);
+        loadDiskEntries();
+    }
+
+    /**
+     * @return the cache key, null if the activity has nothing to speak
+     */
+    public static String getKey(String speak, String locale, String customVoiceDeploymentIds) {
+        if (speak == null || speak.isEmpty()) return null;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String input = speak + '\n' + (locale == null ? "" : locale.toLowerCase(Locale.US)) + '\n' + (customVoiceDeploymentIds == null ? "" : customVoiceDeploymentIds);
+            byte[] hash = digest.digest(input.getBytes(StandardCharsets.UTF_8));
+            StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte b : hash) key.append(String.format(Locale.US, "%02x", b));
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(LOGTAG, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Memory tier only, no disk access, see open() for the disk tier
+     * @return the PCM audio, null if not in memory
+     */
+    public byte[] get(String key) {
+        if (key == null) return null;
+        byte[] pcm = memoryCache.get(key);
+        if (pcm != null) memoryHits.incrementAndGet();
+        return pcm;
+    }
+
+    /**
+     * Play the audio from the disk tier if it is there, else record the audio read from the source
+     * and cache it once the source ended normally.
+     * The disk is read on the first read() of the returned source.
+     * @param source the service stream, closed unread on a disk hit
+     * @return source to play instead of the given one
+     */
+    public AudioSource open(String key, AudioSource source) {
+        if (key == null) return source;
+        return new AudioSource() {
+            private boolean opened;
+            private byte[] cached; // the disk entry, null on a miss
+            private int offset;
+            private ByteArrayOutputStream recorded;
+
+            @Override
+            public long read(byte[] buffer) {
+                if (!opened) {
+                    opened = true;
+                    cached = readDiskEntry(key);
+                    if (cached != null) {
+                        diskHits.incrementAndGet();
+                        memoryCache.put(key, cached);
+                        source.close();
+                    } else {
+                        misses.incrementAndGet();
+                        recorded = new ByteArrayOutputStream(64 * 1024);
+                    }
+                }
+
+                if (cached != null) {
+                    int size = Math.min(buffer.length, cached.length - offset);
+                    System.arraycopy(cached, offset, buffer, 0, size);
+                    offset += size;
+                    return size;
+                }
+
+                long size = source.read(buffer);
+                if (recorded == null) return size;
+
+                if (size > 0 && recorded.size() + size <= MAX_ENTRY_BYTES) {
+                    recorded.write(buffer, 0, (int) size);
+                } else {
+                    // a truncated stream ends like a complete one, it must not be replayed from the cache
+                    if (size <= 0 && recorded.size() > 0 && !source.isTruncated()) put(key, recorded.toByteArray());
+                    recorded = null; // complete, truncated, or too large to cache
+                }
+                return size;
+            }
+
+            @Override
+            public boolean isTruncated() {
+                return cached == null && source.isTruncated();
+            }
+
+            @Override
+            public void close() {
+                source.close();
+            }
+        };
+    }
+
+    public void put(String key, byte[] pcm) {
+        memoryCache.put(key, pcm);
+        writeDiskEntry(key, pcm);
+    }
+
+    @Override
+    public String toString() {
+        synchronized (diskEntries) {
+            return String.format(Locale.US, "memoryHits=%d diskHits=%d misses=%d memoryBytes=%d diskEntries=%d diskBytes=%d",
+                    memoryHits.get(), diskHits.get(), misses.get(), memoryCache.size(), diskEntries.size(), diskBytes);
+        }
+    }
+
+    private void loadDiskEntries() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".pcm"));
+        if (files == null) return;
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        synchronized (diskEntries) {
+            for (File file : files) {
+                String name = file.getName();
+                diskEntries.put(name.substring(0, name.length() - 4), file.length());
+                diskBytes += file.length();
+            }
+        }
+    }
+
+    private File entryFile(String key) {
+        return new File(directory, key + ".pcm");
+    }
+
+    private byte[] readDiskEntry(String key) {
+        synchronized (diskEntries) {
+            if (diskEntries.get(key) == null) return null; // also marks it as recently used
+        }
+
+        File file = entryFile(key);
+        try (InputStream stream = new FileInputStream(file)) {
+            byte[] pcm = new byte[(int) file.length()];
+            int offset = 0;
+            int read;
+            while (offset < pcm.length && (read = stream.read(pcm, offset, pcm.length - offset)) != -1) offset += read;
+            if (!file.setLastModified(System.currentTimeMillis())) Log.d(LOGTAG, "unable to touch " + file);
+            return pcm;
+        } catch (IOException e) {
+            Log.e(LOGTAG, "unable to read " + file + ": " + e.getMessage());
+            removeDiskEntry(key);
+            return null;
+        }
+    }
+
+    private void writeDiskEntry(String key, byte[] pcm) {
+        File file = entryFile(key);
+        File temp = new File(directory, key + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(temp)) {
+            stream.write(pcm);
+        } catch (IOException e) {
+            Log.e(LOGTAG, "unable to write " + file + ": " + e.getMessage());
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            Log.e(LOGTAG, "unable to replace " + file);
+            return;
+        }
+
+        synchronized (diskEntries) {
+            Long previous = diskEntries.put(key, (long) pcm.length);
+            diskBytes += pcm.length - (previous == null ? 0 : previous);
+
+            // evict the least recently used entries
+            Iterator<Map.Entry<String, Long>> eldest = diskEntries.entrySet().iterator();
+            while (diskBytes > DISK_CACHE_BYTES && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                if (entry.getKey().equals(key)) continue;
+                if (!entryFile(entry.getKey()).delete()) Log.e(LOGTAG, "unable to delete " + entry.getKey());
+                diskBytes -= entry.getValue();
+                eldest.remove();
+            }
+        }
+    }
+
+    private void removeDiskEntry(String key) {
+        synchronized (diskEntries) {
+            Long size = diskEntries.remove(key);
+            if (size != null) diskBytes -= size;
+        }
+        if (!entryFile(key).delete()) Log.d(LOGTAG, "unable to delete " + key);
+    }
+}
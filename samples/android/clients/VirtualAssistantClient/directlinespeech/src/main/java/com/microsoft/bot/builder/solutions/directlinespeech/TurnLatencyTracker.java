@@ -0,0 +1,220 @@
+package com.microsoft.bot.builder.solutions.directlinespeech;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Measures where the time of a turn goes and aggregates it into latency histograms per stage.
+ * A voice turn starts when the mic opens, a typed turn when the message is sent. Every stage is
+ * measured from the start of the turn, only its first occurrence in the turn counts.
+ * The reply to a typed message is matched by its replyToId.
+ *
+ * The histograms live for the whole process, they are exposed as JSON and dumped to a file at most
+ * every DUMP_INTERVAL_MS.
+ */
+public class TurnLatencyTracker {
+
+    // CONSTANTS
+    private static final String LOGTAG = "TurnLatencyTracker";
+    public static final String DUMPFILENAME = "latency.json";
+    private static final long DUMP_INTERVAL_MS = 60 * 1000;
+    private static final long TYPED_TURN_EXPIRY_MS = 2 * 60 * 1000;
+    private static final TurnLatencyTracker defaultInstance = new TurnLatencyTracker();
+
+    public enum TurnType {
+        VOICE("voice"),
+        TYPED("typed");
+
+        final String key;
+
+        TurnType(String key) {
+            this.key = key;
+        }
+    }
+
+    public enum Stage {
+        FIRST_PARTIAL("firstPartial"),      // first intermediate recognition
+        FINAL_RESULT("finalResult"),        // final recognition
+        FIRST_ACTIVITY("firstActivity"),    // first activity received from the bot
+        FIRST_AUDIO("firstAudio"),          // first TTS byte written to the AudioTrack
+        PLAYBACK_END("playbackEnd");        // TTS playback done, ends the turn
+
+        final String key;
+
+        Stage(String key) {
+            this.key = key;
+        }
+    }
+
+    // STATE
+    private final Histogram[][] histograms = new Histogram[TurnType.values().length][Stage.values().length];
+    private final Map<String, Long> typedTurnStarts = new LinkedHashMap<>(); // by activity id, oldest first
+    private TurnType turnType;
+    private long turnStart;
+    private int stagesDone; // bit per Stage
+    private File dumpFile;
+    private long lastDumpTime;
+    private boolean dirty;
+
+    /**
+     * Latency distribution over logarithmic buckets, 10% wide, up to ~2 minutes
+     */
+    static class Histogram {
+        private static final double BUCKET_RATIO = 1.1;
+        private static final int BUCKETS = 128;
+        private static final double LOG_RATIO = Math.log(BUCKET_RATIO);
+
+        private final long[] counts = new long[BUCKETS];
+        private long count;
+        private long max;
+
+        void record(long valueMs) {
+            int bucket = valueMs <= 1 ? 0 : (int) Math.ceil(Math.log(valueMs) / LOG_RATIO);
+            counts[Math.min(bucket, BUCKETS - 1)]++;
+            count++;
+            max = Math.max(max, valueMs);
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return upper bound of the bucket holding the percentile
+         */
+        long getPercentile(double percentile) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(percentile / 100 * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(max, (long) Math.ceil(Math.pow(BUCKET_RATIO, i)));
+            }
+            return max;
+        }
+    }
+
+    /**
+     * Percentiles of one stage, serialized to JSON
+     */
+    public static class StageStats {
+        public long count;
+        public long p50;
+        public long p90;
+        public long p99;
+        public long max;
+    }
+
+    public static TurnLatencyTracker getDefault() {
+        return defaultInstance;
+    }
+
+    /**
+     * @param dumpFile the statistics are written to this file periodically, null to not dump
+     */
+    public synchronized void setDumpFile(File dumpFile) {
+        this.dumpFile = dumpFile;
+    }
+
+    /**
+     * The mic opened, starts a voice turn
+     */
+    public synchronized void startVoiceTurn() {
+        startTurn(TurnType.VOICE, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * A typed message was sent, the turn starts when its reply arrives
+     * @param activityId id of the message activity
+     */
+    public synchronized void startTypedTurn(String activityId) {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Long> starts = typedTurnStarts.values().iterator();
+        while (starts.hasNext() && now - starts.next() > TYPED_TURN_EXPIRY_MS) starts.remove();
+        typedTurnStarts.put(activityId, now);
+    }
+
+    /**
+     * @param replyToId of the received activity, may be null
+     */
+    public synchronized void onActivityReceived(String replyToId) {
+        Long typedStart = replyToId == null ? null : typedTurnStarts.remove(replyToId);
+        if (typedStart != null) startTurn(TurnType.TYPED, typedStart);
+        mark(Stage.FIRST_ACTIVITY);
+    }
+
+    public synchronized void mark(Stage stage) {
+        if (turnType == null) return;
+        int bit = 1 << stage.ordinal();
+        if ((stagesDone & bit) != 0) return;
+        stagesDone |= bit;
+
+        long now = SystemClock.elapsedRealtime();
+        histogram(turnType, stage).record(now - turnStart);
+        dirty = true;
+
+        if (stage == Stage.PLAYBACK_END) {
+            turnType = null;
+            dumpIfDue(now);
+        }
+    }
+
+    /**
+     * @return stage statistics keyed by "turnType.stage", i.e. "voice.firstAudio", in ms
+     */
+    public synchronized Map<String, StageStats> getStats() {
+        Map<String, StageStats> stats = new LinkedHashMap<>();
+        for (TurnType type : TurnType.values()) {
+            for (Stage stage : Stage.values()) {
+                Histogram histogram = histograms[type.ordinal()][stage.ordinal()];
+                if (histogram == null) continue;
+                StageStats stageStats = new StageStats();
+                stageStats.count = histogram.count;
+                stageStats.p50 = histogram.getPercentile(50);
+                stageStats.p90 = histogram.getPercentile(90);
+                stageStats.p99 = histogram.getPercentile(99);
+                stageStats.max = histogram.max;
+                stats.put(type.key + "." + stage.key, stageStats);
+            }
+        }
+        return stats;
+    }
+
+    public String getStatsJson() {
+        return new Gson().toJson(getStats());
+    }
+
+    private void startTurn(TurnType type, long start) {
+        turnType = type;
+        turnStart = start;
+        stagesDone = 0;
+    }
+
+    private Histogram histogram(TurnType type, Stage stage) {
+        Histogram histogram = histograms[type.ordinal()][stage.ordinal()];
+        if (histogram == null) {
+            histogram = new Histogram();
+            histograms[type.ordinal()][stage.ordinal()] = histogram;
+        }
+        return histogram;
+    }
+
+    private void dumpIfDue(long now) {
+        if (dumpFile == null || !dirty || now - lastDumpTime < DUMP_INTERVAL_MS) return;
+        lastDumpTime = now;
+        dirty = false;
+
+        try (FileOutputStream stream = new FileOutputStream(dumpFile)) {
+            stream.write(getStatsJson().getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.e(LOGTAG, "unable to write " + dumpFile + ": " + e.getMessage());
+        }
+    }
+}
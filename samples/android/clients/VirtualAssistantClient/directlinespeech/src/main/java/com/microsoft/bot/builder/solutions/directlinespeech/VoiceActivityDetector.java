@@ -0,0 +1,139 @@
+package com.microsoft.bot.builder.solutions.directlinespeech;
+
+/**
+ * Energy and zero-crossing voice activity detector over 20ms frames of 16kHz 16bit mono PCM.
+ * A frame is speech if its energy is energyThresholdDb above the noise floor (voiced), or half
+ * that with a zero-crossing rate above zeroCrossingThreshold (unvoiced, i.e. "s" or "f").
+ * The noise floor follows the energy of the non-speech frames. It starts at the first frame's
+ * energy, at most MAX_INITIAL_NOISE_FLOOR_DB in case the user is already speaking, and drops right
+ * away to the quietest frame of the pre-roll.
+ *
+ * The utterance starts after MIN_SPEECH_MS of speech and ends after endSilenceMs of non-speech,
+ * or after MAX_LEADING_SILENCE_MS if it never started.
+ * Not thread safe, process() allocates nothing.
+ */
+public class VoiceActivityDetector {
+
+    // CONSTANTS
+    private static final int FRAME_MS = 20;
+    private static final int FRAME_SAMPLES = 16000 / 1000 * FRAME_MS;
+    private static final int MIN_SPEECH_MS = 60;
+    private static final int MAX_LEADING_SILENCE_MS = 5000;
+    private static final double MIN_SPEECH_DB = -55; // dBFS, quieter frames are never speech
+    private static final double MAX_INITIAL_NOISE_FLOOR_DB = -45; // dBFS, a noisy room
+    private static final double NOISE_FLOOR_GAIN = 0.05;
+    private static final double FULL_SCALE = 32768.0 * 32768.0;
+
+    // STATE
+    private final double energyThresholdDb;
+    private final double zeroCrossingThreshold;
+    private final int endSilenceFrames;
+    private double noiseFloorDb;
+    private boolean noiseFloorKnown;
+    private boolean speechStarted;
+    private boolean ended;
+    private int speechFrames; // consecutive
+    private int silenceFrames; // consecutive
+    private int frames;
+    private long speechMs;
+    // frame being accumulated
+    private double sumOfSquares;
+    private int zeroCrossings;
+    private int samples;
+    private int previousSample;
+    private int lowByte = -1; // of a sample split across process() calls
+
+    /**
+     * @param energyThresholdDb how far above the noise floor speech is
+     * @param zeroCrossingThreshold zero crossings per sample above which weak frames count as unvoiced speech
+     * @param endSilenceMs silence after the speech that ends the utterance
+     */
+    public VoiceActivityDetector(double energyThresholdDb, double zeroCrossingThreshold, int endSilenceMs) {
+        this.energyThresholdDb = energyThresholdDb;
+        this.zeroCrossingThreshold = zeroCrossingThreshold;
+        this.endSilenceFrames = Math.max(1, endSilenceMs / FRAME_MS);
+    }
+
+    /**
+     * Start a new utterance, the noise floor is kept
+     */
+    public void reset() {
+        speechStarted = false;
+        ended = false;
+        speechFrames = 0;
+        silenceFrames = 0;
+        frames = 0;
+        speechMs = 0;
+        sumOfSquares = 0;
+        zeroCrossings = 0;
+        samples = 0;
+        lowByte = -1;
+    }
+
+    public void process(byte[] pcm, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end && !ended; i++) {
+            if (lowByte < 0) {
+                lowByte = pcm[i] & 0xFF;
+                continue;
+            }
+            int sample = (short) ((pcm[i] << 8) | lowByte);
+            lowByte = -1;
+
+            sumOfSquares += (double) sample * sample;
+            if ((sample < 0) != (previousSample < 0)) zeroCrossings++;
+            previousSample = sample;
+            if (++samples == FRAME_SAMPLES) endFrame();
+        }
+    }
+
+    public boolean isSpeechStarted() {
+        return speechStarted;
+    }
+
+    /**
+     * @return true once the speech ended, or no speech came in time
+     */
+    public boolean isEndOfUtterance() {
+        return ended;
+    }
+
+    public long getSpeechMs() {
+        return speechMs;
+    }
+
+    private void endFrame() {
+        double energyDb = 10 * Math.log10(sumOfSquares / samples / FULL_SCALE + 1e-10);
+        double zeroCrossingRate = (double) zeroCrossings / samples;
+        sumOfSquares = 0;
+        zeroCrossings = 0;
+        samples = 0;
+        frames++;
+
+        if (!noiseFloorKnown) {
+            noiseFloorDb = Math.min(energyDb, MAX_INITIAL_NOISE_FLOOR_DB);
+            noiseFloorKnown = true;
+        }
+        boolean voiced = energyDb > noiseFloorDb + energyThresholdDb;
+        boolean unvoiced = energyDb > noiseFloorDb + energyThresholdDb / 2 && zeroCrossingRate > zeroCrossingThreshold;
+        boolean speech = energyDb > MIN_SPEECH_DB && (voiced || unvoiced);
+
+        if (speech) {
+            speechFrames++;
+            silenceFrames = 0;
+            if (speechFrames * FRAME_MS >= MIN_SPEECH_MS) speechStarted = true;
+        } else {
+            speechFrames = 0;
+            silenceFrames++;
+            // drops right away, rises slowly so that speech doesn't raise it much
+            noiseFloorDb = energyDb < noiseFloorDb ? energyDb : noiseFloorDb + NOISE_FLOOR_GAIN * (energyDb - noiseFloorDb);
+        }
+        if (speechStarted && speech) speechMs += FRAME_MS;
+
+        if (speechStarted) {
+            ended = silenceFrames >= endSilenceFrames;
+        } else {
+            ended = frames * FRAME_MS >= MAX_LEADING_SILENCE_MS;
+        }
+    }
+}
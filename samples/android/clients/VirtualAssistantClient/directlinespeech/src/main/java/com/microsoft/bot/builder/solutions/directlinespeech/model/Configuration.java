@@ -61,6 +61,42 @@ public class Configuration {
     @Expose
     public Boolean signedIn;
 
+    @SerializedName("ConnectionIdleTimeoutSeconds")
+    @Expose
+    public Integer connectionIdleTimeoutSeconds;
+
+    @SerializedName("ResponseTimeoutMinSeconds")
+    @Expose
+    public Integer responseTimeoutMinSeconds;
+
+    @SerializedName("ResponseTimeoutMaxSeconds")
+    @Expose
+    public Integer responseTimeoutMaxSeconds;
+
+    @SerializedName("TTSOutputFormat")
+    @Expose
+    public String ttsOutputFormat;
+
+    @SerializedName("MicrophonePreRollMs")
+    @Expose
+    public Integer microphonePreRollMs;
+
+    @SerializedName("VadEndOfSpeechSilenceMs")
+    @Expose
+    public Integer vadEndOfSpeechSilenceMs;
+
+    @SerializedName("VadEnergyThresholdDb")
+    @Expose
+    public Float vadEnergyThresholdDb;
+
+    @SerializedName("VadZeroCrossingRateThreshold")
+    @Expose
+    public Float vadZeroCrossingRateThreshold;
+
+    @SerializedName("VadGateLeadingSilence")
+    @Expose
+    public Boolean vadGateLeadingSilence;
+
     @SerializedName("LinkedAccountEndpoint")
     @Expose
     public String linkedAccountEndpoint;
@@ -0,0 +1,220 @@
+package com.microsoft.bot.builder.solutions.directlinespeech.utils;
+
+import android.util.Log;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Appends log lines to a file without blocking the calling thread.
+ * Callers only publish an entry into a bounded lock-free ring buffer. A single background thread
+ * formats the entries, writes them in batches, syncs the file periodically and rotates it once
+ * it exceeds MAX_FILE_BYTES. Rotated segments are gzipped as "name.1.gz" ... "name.N.gz".
+ *
+ * If the ring buffer is full the entry is dropped and counted, the writer reports the count.
+ */
+public class FileLogger {
+
+    // CONSTANTS
+    private static final String LOGTAG = "FileLogger";
+    private static final int RING_CAPACITY = 1024; // must be a power of 2
+    private static final int MAX_BATCH = 256;
+    private static final long FLUSH_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long SYNC_INTERVAL_MS = 5 * 1000;
+    private static final long MAX_FILE_BYTES = 2 * 1024 * 1024;
+    private static final int MAX_ROTATED_SEGMENTS = 5;
+    private static final Map<String, FileLogger> loggers = new HashMap<>();
+
+    // STATE
+    private final File file;
+    private final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<>(RING_CAPACITY);
+    private final AtomicLong head = new AtomicLong(); // next slot to be consumed by the writer
+    private final AtomicLong tail = new AtomicLong(); // next slot to be claimed by a producer
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writerThread;
+    private volatile int level = Log.DEBUG;
+    private FileOutputStream fileStream;
+    private Writer writer;
+    private long lastSyncTime;
+
+    private static class Entry {
+        final String format;
+        final Object[] args;
+
+        Entry(String format, Object[] args) {
+            this.format = format;
+            this.args = args;
+        }
+
+        String format() {
+            if (args == null || args.length == 0) return format;
+            return String.format(Locale.US, format, args);
+        }
+    }
+
+    /**
+     * @param file the log file, appended to if it already exists
+     * @return the logger for this file, shared by all callers in the process
+     */
+    public static FileLogger forFile(File file) {
+        synchronized (loggers) {
+            FileLogger logger = loggers.get(file.getAbsolutePath());
+            if (logger == null) {
+                logger = new FileLogger(file);
+                loggers.put(file.getAbsolutePath(), logger);
+            }
+            return logger;
+        }
+    }
+
+    private FileLogger(File file) {
+        this.file = file;
+        writerThread = new Thread(this::runWriter, LOGTAG);
+        writerThread.setDaemon(true);
+        writerThread.setPriority(Thread.MIN_PRIORITY);
+        writerThread.start();
+    }
+
+    /**
+     * @param level minimum android.util.Log level that is written, e.g. Log.INFO
+     */
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public boolean isLoggable(int level) {
+        return level >= this.level;
+    }
+
+    /**
+     * Queue a line for writing. Formatting with args happens on the writer thread and only
+     * if the level is enabled.
+     * @param level android.util.Log level
+     * @param format the message, used as a String.format pattern only if args are given
+     */
+    public void log(int level, String format, Object... args) {
+        if (!isLoggable(level)) return;
+
+        Entry entry = new Entry(format, args);
+        long slot;
+        do {
+            slot = tail.get();
+            if (slot - head.get() >= RING_CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(slot, slot + 1));
+        ring.lazySet((int) (slot & (RING_CAPACITY - 1)), entry);
+
+        // wake the writer early when the ring fills up, otherwise it wakes up on its own
+        if (slot - head.get() == RING_CAPACITY / 2) LockSupport.unpark(writerThread);
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    private void runWriter() {
+        while (true) {
+            try {
+                if (writer == null) open();
+                int count = drain();
+                long now = System.currentTimeMillis();
+                if (count > 0) writer.flush();
+                if (now - lastSyncTime >= SYNC_INTERVAL_MS) {
+                    fileStream.getFD().sync();
+                    lastSyncTime = now;
+                }
+                if (fileStream.getChannel().position() >= MAX_FILE_BYTES) rotate();
+                if (count < MAX_BATCH) LockSupport.parkNanos(this, FLUSH_INTERVAL_NS);
+            } catch (IOException e) {
+                Log.e(LOGTAG, "write failed: " + e.getMessage());
+                closeQuietly();
+                LockSupport.parkNanos(this, TimeUnit.SECONDS.toNanos(5)); // retry later
+            }
+        }
+    }
+
+    private int drain() throws IOException {
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) writer.write(lost + " log entries dropped\n");
+
+        int count = 0;
+        long next = head.get();
+        while (count < MAX_BATCH) {
+            int index = (int) (next & (RING_CAPACITY - 1));
+            Entry entry = ring.get(index);
+            if (entry == null) break; // empty, or claimed but not published yet
+            ring.lazySet(index, null);
+            head.lazySet(++next);
+            writer.write(entry.format());
+            writer.write('\n');
+            count++;
+        }
+        return count;
+    }
+
+    private void open() throws IOException {
+        fileStream = new FileOutputStream(file, true);
+        writer = new BufferedWriter(new OutputStreamWriter(fileStream, StandardCharsets.UTF_8), 16 * 1024);
+        lastSyncTime = System.currentTimeMillis();
+    }
+
+    private void rotate() throws IOException {
+        writer.flush();
+        fileStream.getFD().sync();
+        closeQuietly();
+
+        File oldest = segment(MAX_ROTATED_SEGMENTS);
+        if (oldest.exists() && !oldest.delete()) Log.e(LOGTAG, "unable to delete " + oldest);
+        for (int i = MAX_ROTATED_SEGMENTS - 1; i >= 1; i--) {
+            File segment = segment(i);
+            if (segment.exists() && !segment.renameTo(segment(i + 1))) Log.e(LOGTAG, "unable to rename " + segment);
+        }
+
+        gzip(file, segment(1));
+        if (!file.delete()) Log.e(LOGTAG, "unable to delete " + file);
+        open();
+    }
+
+    private File segment(int index) {
+        return new File(file.getPath() + "." + index + ".gz");
+    }
+
+    private static void gzip(File source, File target) throws IOException {
+        byte[] buffer = new byte[16 * 1024];
+        try (InputStream in = new FileInputStream(source);
+             OutputStream out = new GZIPOutputStream(new FileOutputStream(target))) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            if (writer != null) writer.close();
+        } catch (IOException e) {
+            Log.e(LOGTAG, e.getMessage());
+        }
+        writer = null;
+        fileStream = null;
+    }
+}
@@ -0,0 +1,29 @@
+package com.microsoft.bot.builder.solutions.directlinespeech.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+public class HashUtils {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * @return SHA-256 of the UTF-8 text as lowercase hex, null if the text is null
+     */
+    public static String sha256Hex(String text) {
+        if (text == null) return null;
+        byte[] hash;
+        try {
+            hash = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // every platform has SHA-256
+        }
+        char[] hex = new char[hash.length * 2];
+        for (int x = 0; x < hash.length; x++) {
+            hex[x * 2] = HEX_DIGITS[(hash[x] >> 4) & 0xF];
+            hex[x * 2 + 1] = HEX_DIGITS[hash[x] & 0xF];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,158 @@
+package events;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Typed event dispatcher for the events of this package.
+ * Subscribers register per event type with an explicit thread mode. The subscribers of a type are
+ * kept in a copy-on-write array, so post() only does a map lookup and iterates the array: no
+ * reflection and no allocation. Events for another thread travel in pooled Messages.
+ *
+ * Thread modes:
+ * - POSTING: called on the posting thread
+ * - MAIN: called on the main thread, right away if posted from it
+ * - BACKGROUND: called on the dispatcher's background thread if posted from the main thread,
+ *   otherwise on the posting thread
+ *
+ * A subscriber unregistered before a queued event is delivered doesn't get it.
+ */
+public class EventDispatcher {
+
+    // CONSTANTS
+    private static final String LOGTAG = "EventDispatcher";
+    private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+    private static EventDispatcher defaultInstance;
+
+    public enum ThreadMode {
+        POSTING,
+        MAIN,
+        BACKGROUND
+    }
+
+    public interface Subscriber<T> {
+        void onEvent(T event) throws Exception;
+    }
+
+    // STATE
+    private final Map<Class<?>, Subscription[]> subscriptionsByType = new ConcurrentHashMap<>(); // written under this
+    private final Handler mainHandler;
+    private Handler backgroundHandler; // guarded by this, created on first use
+
+    private static class Subscription {
+        final Object owner;
+        final ThreadMode threadMode;
+        final Subscriber<Object> subscriber;
+
+        Subscription(Object owner, ThreadMode threadMode, Subscriber<Object> subscriber) {
+            this.owner = owner;
+            this.threadMode = threadMode;
+            this.subscriber = subscriber;
+        }
+    }
+
+    public static synchronized EventDispatcher getDefault() {
+        if (defaultInstance == null) defaultInstance = new EventDispatcher();
+        return defaultInstance;
+    }
+
+    public EventDispatcher() {
+        mainHandler = new Handler(Looper.getMainLooper(), this::handleMessage);
+    }
+
+    /**
+     * @param owner subscriptions are removed by owner, i.e. the registering activity
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <T> void register(Object owner, Class<T> eventType, ThreadMode threadMode, Subscriber<? super T> subscriber) {
+        Subscription[] subscriptions = subscriptionsByType.get(eventType);
+        if (subscriptions == null) subscriptions = NO_SUBSCRIPTIONS;
+
+        Subscription[] updated = new Subscription[subscriptions.length + 1];
+        System.arraycopy(subscriptions, 0, updated, 0, subscriptions.length);
+        updated[subscriptions.length] = new Subscription(owner, threadMode, (Subscriber<Object>) subscriber);
+        subscriptionsByType.put(eventType, updated);
+    }
+
+    /**
+     * Remove all subscriptions of the owner
+     */
+    public synchronized void unregister(Object owner) {
+        for (Map.Entry<Class<?>, Subscription[]> entry : subscriptionsByType.entrySet()) {
+            List<Subscription> kept = new ArrayList<>();
+            for (Subscription subscription : entry.getValue()) {
+                if (subscription.owner != owner) kept.add(subscription);
+            }
+            if (kept.size() == entry.getValue().length) continue;
+
+            if (kept.isEmpty()) {
+                subscriptionsByType.remove(entry.getKey());
+            } else {
+                subscriptionsByType.put(entry.getKey(), kept.toArray(NO_SUBSCRIPTIONS));
+            }
+        }
+    }
+
+    public void post(Object event) {
+        Subscription[] subscriptions = subscriptionsByType.get(event.getClass());
+        if (subscriptions == null) return;
+
+        boolean onMainThread = Looper.myLooper() == Looper.getMainLooper();
+        boolean queueMain = false;
+        boolean queueBackground = false;
+        for (Subscription subscription : subscriptions) {
+            switch (subscription.threadMode) {
+                case POSTING:
+                    deliver(subscription, event);
+                    break;
+                case MAIN:
+                    if (onMainThread) deliver(subscription, event);
+                    else queueMain = true;
+                    break;
+                case BACKGROUND:
+                    if (onMainThread) queueBackground = true;
+                    else deliver(subscription, event);
+                    break;
+            }
+        }
+
+        // one message per thread, it delivers to all the subscriptions of that mode
+        if (queueMain) mainHandler.obtainMessage(ThreadMode.MAIN.ordinal(), event).sendToTarget();
+        if (queueBackground) getBackgroundHandler().obtainMessage(ThreadMode.BACKGROUND.ordinal(), event).sendToTarget();
+    }
+
+    private boolean handleMessage(Message message) {
+        Subscription[] subscriptions = subscriptionsByType.get(message.obj.getClass());
+        if (subscriptions == null) return true;
+
+        for (Subscription subscription : subscriptions) {
+            if (subscription.threadMode.ordinal() == message.what) deliver(subscription, message.obj);
+        }
+        return true;
+    }
+
+    private synchronized Handler getBackgroundHandler() {
+        if (backgroundHandler == null) {
+            HandlerThread thread = new HandlerThread(LOGTAG);
+            thread.start();
+            backgroundHandler = new Handler(thread.getLooper(), this::handleMessage);
+        }
+        return backgroundHandler;
+    }
+
+    private static void deliver(Subscription subscription, Object event) {
+        try {
+            subscription.subscriber.onEvent(event);
+        } catch (Exception e) {
+            Log.e(LOGTAG, "could not dispatch " + event.getClass().getSimpleName() + " to " + subscription.owner, e);
+        }
+    }
+}
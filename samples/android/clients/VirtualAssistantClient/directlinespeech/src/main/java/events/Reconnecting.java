@@ -0,0 +1,12 @@
+package events;
+
+public class Reconnecting {
+
+    public int errorCode;
+    public String errorDetails;
+
+    public Reconnecting(int errorCode, String errorDetails) {
+        this.errorCode = errorCode;
+        this.errorDetails = errorDetails;
+    }
+}